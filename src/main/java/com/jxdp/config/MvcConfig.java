@@ -1,6 +1,8 @@
 package com.jxdp.config;
 
+import com.jxdp.interceptor.AdminInterceptor;
 import com.jxdp.interceptor.LoginInterceptor;
+import com.jxdp.interceptor.RateLimitInterceptor;
 import com.jxdp.interceptor.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
@@ -13,6 +15,10 @@ public class MvcConfig implements WebMvcConfigurer {
     LoginInterceptor loginInterceptor;
     @Autowired
     RefreshTokenInterceptor refreshTokenInterceptor;
+    @Autowired
+    RateLimitInterceptor rateLimitInterceptor;
+    @Autowired
+    AdminInterceptor adminInterceptor;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(loginInterceptor)
@@ -26,6 +32,16 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 ).order(1);
         registry.addInterceptor(refreshTokenInterceptor).addPathPatterns("/**").order(0);
+        // 限流放在登录校验之后，这样可以按用户限流
+        registry.addInterceptor(rateLimitInterceptor).addPathPatterns("/**").order(2);
+        // 运维接口只允许管理员访问
+        registry.addInterceptor(adminInterceptor)
+                .addPathPatterns(
+                        "/voucher-order/metrics",
+                        "/voucher-order/reconcile",
+                        "/voucher-order/dlq",
+                        "/voucher-order/dlq/**"
+                ).order(3);
 
     }
 }
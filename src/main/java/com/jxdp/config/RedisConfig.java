@@ -0,0 +1,35 @@
+package com.jxdp.config;
+
+import com.jxdp.utils.CacheClient;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillOrderResultNotifier;
+import com.jxdp.utils.SeckillSoldOutHolder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+
+    /**
+     * redis发布订阅的监听容器，用于各个实例之间广播消息
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       SeckillSoldOutHolder seckillSoldOutHolder,
+                                                                       SeckillOrderResultNotifier seckillOrderResultNotifier,
+                                                                       CacheClient cacheClient){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 秒杀券售罄/补货通知
+        container.addMessageListener(seckillSoldOutHolder, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        container.addMessageListener(seckillSoldOutHolder, new ChannelTopic(RedisConstants.SECKILL_RESTOCK_CHANNEL));
+        // 秒杀订单结果通知
+        container.addMessageListener(seckillOrderResultNotifier, new ChannelTopic(RedisConstants.SECKILL_ORDER_RESULT_CHANNEL));
+        // 本地缓存失效通知
+        container.addMessageListener(cacheClient, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        return container;
+    }
+}
@@ -3,13 +3,16 @@ package com.jxdp.controller;
 
 import com.jxdp.dto.Result;
 import com.jxdp.service.IVoucherOrderService;
+import com.jxdp.task.SeckillStockReconciler;
+import com.jxdp.utils.SeckillMetrics;
+import com.jxdp.utils.SeckillOrderResultNotifier;
+import com.jxdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 
 /**
  * <p>
@@ -25,10 +28,102 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     IVoucherOrderService voucherOrderService;
+    @Resource
+    SeckillOrderResultNotifier seckillOrderResultNotifier;
+    @Resource
+    SeckillMetrics seckillMetrics;
+    @Resource
+    SeckillStockReconciler seckillStockReconciler;
+
+    /**
+     * 长轮询的最长等待时间
+     */
+    private static final long MAX_RESULT_TIMEOUT = 60000L;
+
+    /**
+     * 秒杀排队，开启排队后需要等到放行(position为0)才能下单
+     * @param voucherId 优惠卷id
+     * @return 前面还有多少人以及预计等待时间
+     */
+    @PostMapping("queue/{id}")
+    public Result queueSeckill(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.queueSeckill(voucherId);
+    }
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         log.info("秒杀下单: {}", voucherId);
         return voucherOrderService.seckilloucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态
+     * @param orderId 订单id
+     * @return QUEUED 排队中 / CREATED 已创建 / FAILED 创建失败 / UNKNOWN 状态已过期且订单尚未落库(或不是当前用户的订单)
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 等待秒杀订单的处理结果(长轮询)，订单落库成功或失败时立即返回
+     * @param orderId 订单id
+     * @param timeout 最长等待时间(毫秒)，超时返回QUEUED
+     * @return CREATED 已创建 / FAILED 创建失败 / QUEUED 仍在排队 / UNKNOWN 状态已过期或不是当前用户的订单
+     */
+    @GetMapping("{id}/result")
+    public DeferredResult<Result> waitOrderResult(@PathVariable("id") Long orderId,
+                                                  @RequestParam(value = "timeout", defaultValue = "30000") Long timeout) {
+        return seckillOrderResultNotifier.subscribe(orderId, UserHolder.getUser().getId(),
+                Math.min(timeout, MAX_RESULT_TIMEOUT));
+    }
+
+    /**
+     * 秒杀链路指标：stream长度、积压、pending数量、每秒下单数、各阶段耗时和失败数(运维接口，只有管理员可以访问，见AdminInterceptor)
+     */
+    @GetMapping("metrics")
+    public Result queryMetrics() {
+        return Result.ok(seckillMetrics.snapshot());
+    }
+
+    /**
+     * 最近一次对账中redis与数据库库存不一致的秒杀券(运维接口，只有管理员可以访问，见AdminInterceptor)
+     */
+    @GetMapping("reconcile")
+    public Result queryReconcileDiffs() {
+        return Result.ok(new ArrayList<>(seckillStockReconciler.getDiffs()));
+    }
+
+    /**
+     * 查询死信队列中的订单消息(运维接口，只有管理员可以访问，见AdminInterceptor)
+     * @param count 最多返回的条数
+     * @return 死信消息列表
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 将死信消息重新投递到原来的stream中(运维接口，只有管理员可以访问，见AdminInterceptor)
+     * @param id 死信消息id
+     * @return 新的消息id
+     */
+    @PostMapping("dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        log.info("重新投递死信消息: {}", id);
+        return voucherOrderService.replayDeadLetter(id);
+    }
+
+    /**
+     * 丢弃死信消息，订单标记为失败并归还redis库存(运维接口，只有管理员可以访问，见AdminInterceptor)
+     * @param id 死信消息id
+     * @return
+     */
+    @DeleteMapping("dlq/{id}")
+    public Result discardDeadLetter(@PathVariable("id") String id) {
+        log.info("丢弃死信消息: {}", id);
+        return voucherOrderService.discardDeadLetter(id);
+    }
 }
@@ -0,0 +1,22 @@
+package com.jxdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀排队结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillQueueDTO {
+    /**
+     * 前面还有多少人，0表示已经放行，可以下单了
+     */
+    private Long position;
+    /**
+     * 预计还需要等待的时间(毫秒)
+     */
+    private Long waitMillis;
+}
@@ -37,6 +37,16 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 每人限购数量
+     */
+    private Integer userLimit;
+
+    /**
+     * 一人一单的记录方式，1：set；2：bitmap；3：分片bitmap，为空时使用默认配置
+     */
+    private Integer buyerDedupe;
+
     /**
      * 创建时间
      */
@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 每人限购数量(秒杀券)，为空时每人限购一张
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
+    /**
+     * 一人一单的记录方式，1：set；2：bitmap；3：分片bitmap，为空时使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer buyerDedupe;
+
     /**
      * 生效时间
      */
@@ -1,6 +1,7 @@
 package com.jxdp.entity;
 
 import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableField;
 import com.baomidou.mybatisplus.annotation.TableId;
 import com.baomidou.mybatisplus.annotation.TableName;
 import lombok.Data;
@@ -77,5 +78,11 @@ public class VoucherOrder implements Serializable {
      */
     private LocalDateTime updateTime;
 
+    /**
+     * 每人限购数量，只在秒杀下单的消息中传递，为空表示每人限购一张
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
 
 }
@@ -0,0 +1,37 @@
+package com.jxdp.interceptor;
+
+import com.jxdp.dto.UserDTO;
+import com.jxdp.properties.AdminProperties;
+import com.jxdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 运维接口的权限校验：只有hmdp.admin.user-ids中的用户可以访问，其他用户返回403
+ */
+@Component
+@Slf4j
+public class AdminInterceptor implements HandlerInterceptor {
+    @Resource
+    AdminProperties adminProperties;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null){
+            response.setStatus(401);
+            return false;
+        }
+        if (!adminProperties.getUserIds().contains(user.getId())){
+            log.warn("用户 {} 没有权限访问运维接口: {}", user.getId(), request.getRequestURI());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
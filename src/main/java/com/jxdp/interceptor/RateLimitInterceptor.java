@@ -0,0 +1,137 @@
+package com.jxdp.interceptor;
+
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.json.JSONUtil;
+import com.jxdp.dto.Result;
+import com.jxdp.dto.UserDTO;
+import com.jxdp.properties.RateLimitProperties;
+import com.jxdp.utils.LocalTokenBucket;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillSoldOutHolder;
+import com.jxdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 接口限流拦截器，在执行任何秒杀逻辑之前拒绝多余的请求
+ * 第一层：本实例的令牌桶，不访问redis，挡住单个实例上的突发流量
+ * 第二层：redis滑动窗口(计数器近似)，按用户和资源(路径中的变量，例如优惠卷id)限流，所有实例共享额度，挡住刷单脚本和重试风暴
+ * 秒杀券在本实例已经售罄时，请求会在本地直接返回，不再限流(不访问redis)
+ */
+@Component
+@Slf4j
+public class RateLimitInterceptor implements HandlerInterceptor {
+    @Autowired
+    StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    RateLimitProperties rateLimitProperties;
+    @Autowired
+    SeckillSoldOutHolder seckillSoldOutHolder;
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    /**
+     * 每条规则对应的本地令牌桶，下标与规则一致，不限制时为null
+     */
+    private final List<LocalTokenBucket> buckets = new ArrayList<>();
+
+    @PostConstruct
+    public void init(){
+        for (RateLimitProperties.Rule rule : rateLimitProperties.getRules()) {
+            buckets.add(rule.getPermitsPerSecond() > 0
+                    ? new LocalTokenBucket(rule.getPermitsPerSecond(), rule.getBurst())
+                    : null);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!rateLimitProperties.isEnabled()){
+            return true;
+        }
+        String uri = request.getRequestURI();
+        List<RateLimitProperties.Rule> rules = rateLimitProperties.getRules();
+        for (int i = 0; i < rules.size(); i++) {
+            RateLimitProperties.Rule rule = rules.get(i);
+            if (!pathMatcher.match(rule.getPath(), uri)){
+                continue;
+            }
+            Map<String, String> variables = pathMatcher.extractUriTemplateVariables(rule.getPath(), uri);
+            if (rule.isSkipSoldOut() && isSoldOut(variables.get("id"))){
+                // 已经售罄，业务层在本地直接返回库存不足
+                return true;
+            }
+            // 1. 本地令牌桶
+            LocalTokenBucket bucket = buckets.get(i);
+            if (bucket != null && !bucket.tryAcquire()){
+                return reject(response);
+            }
+            // 2. redis滑动窗口
+            if (!tryAcquireRemote(rule, uri, variables)){
+                return reject(response);
+            }
+            return true;
+        }
+        return true;
+    }
+
+    private boolean isSoldOut(String voucherId){
+        return NumberUtil.isLong(voucherId) && seckillSoldOutHolder.isSoldOut(Long.valueOf(voucherId));
+    }
+
+    private boolean tryAcquireRemote(RateLimitProperties.Rule rule, String uri, Map<String, String> variables){
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(rule.getWindow().toMillis()));
+        UserDTO user = UserHolder.getUser();
+        if (rule.getUserLimit() > 0 && user != null){
+            args.add(RedisConstants.RATE_LIMIT_KEY + rule.getName() + ":user:" + user.getId());
+            args.add(String.valueOf(rule.getUserLimit()));
+        }
+        if (rule.getResourceLimit() > 0){
+            // 按路径中的变量(例如优惠卷id)区分资源，没有变量时整条规则共用一个额度
+            String resource = variables.isEmpty() ? "all" : String.join(":", variables.values());
+            args.add(RedisConstants.RATE_LIMIT_KEY + rule.getName() + ":resource:" + resource);
+            args.add(String.valueOf(rule.getResourceLimit()));
+        }
+        if (args.size() == 1){
+            return true;
+        }
+        try {
+            Long result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, Collections.emptyList(), args.toArray());
+            return result == null || result == 1L;
+        } catch (RuntimeException e) {
+            // 限流只是保护措施，redis异常时放行，由后面的业务自己处理
+            log.warn("限流检查失败，放行请求：{}", uri, e);
+            return true;
+        }
+    }
+
+    private boolean reject(HttpServletResponse response) throws Exception {
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(
+                JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
@@ -9,7 +9,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,7 +18,7 @@ import java.util.concurrent.TimeUnit;
 
 @Component
 @Slf4j
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
     @Autowired
     StringRedisTemplate stringRedisTemplate;
     @Override
@@ -52,4 +52,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 移除用户信息
         UserHolder.removeUser();
     }
+
+    /**
+     * 异步请求(如订单结果的长轮询)在tomcat线程返回时不会调用afterCompletion，
+     * 需要在这里移除用户信息，否则该线程处理的下一个请求会拿到这个用户
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
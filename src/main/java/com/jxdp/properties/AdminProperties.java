@@ -0,0 +1,22 @@
+package com.jxdp.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 运维接口(秒杀指标、对账结果、死信队列)的访问配置
+ */
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+@Data
+public class AdminProperties {
+
+    /**
+     * 允许访问运维接口的用户id，为空时所有用户都不能访问
+     */
+    private List<Long> userIds = new ArrayList<>();
+}
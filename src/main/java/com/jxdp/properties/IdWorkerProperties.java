@@ -0,0 +1,64 @@
+package com.jxdp.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 全局id生成器配置
+ */
+@Component
+@ConfigurationProperties(prefix = "hmdp.id-worker")
+@Data
+public class IdWorkerProperties {
+
+    /**
+     * id生成方式
+     */
+    private Strategy strategy = Strategy.REDIS;
+    /**
+     * 号段模式配置
+     */
+    private Segment segment = new Segment();
+    /**
+     * 雪花算法配置
+     */
+    private Snowflake snowflake = new Snowflake();
+
+    public enum Strategy {
+        /**
+         * 时间戳 + redis自增序列号(RedisIdWorker)
+         */
+        REDIS,
+        /**
+         * 本地生成：时间戳 + workerId + 序列号(SnowflakeIdWorker)，workerId从redis中租用
+         */
+        SNOWFLAKE
+    }
+
+    @Data
+    public static class Segment {
+        /**
+         * 是否开启号段模式，关闭时每个id都通过一次INCR生成
+         */
+        private boolean enabled = false;
+        /**
+         * 每次从redis中申请的号段长度(INCRBY的步长)
+         */
+        private int step = 1000;
+        /**
+         * 当前号段剩余的比例低于这个值时，异步申请下一个号段
+         */
+        private double prefetchRatio = 0.2;
+    }
+
+    @Data
+    public static class Snowflake {
+        /**
+         * workerId租约的有效时间，续期间隔通过hmdp.id-worker.snowflake.heartbeat-interval(毫秒)配置
+         */
+        private Duration leaseTtl = Duration.ofSeconds(30);
+    }
+}
@@ -0,0 +1,29 @@
+package com.jxdp.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 本地缓存(一级缓存)配置
+ */
+@Component
+@ConfigurationProperties(prefix = "hmdp.local-cache")
+@Data
+public class LocalCacheProperties {
+
+    /**
+     * 是否开启本地缓存，关闭时所有查询都直接访问redis
+     */
+    private boolean enabled = false;
+    /**
+     * 最多缓存的数据条数，超过后按W-TinyLFU淘汰
+     */
+    private long maximumSize = 10000;
+    /**
+     * 写入后的有效时间，失效消息丢失时最多读到这么长时间的旧数据
+     */
+    private Duration ttl = Duration.ofSeconds(30);
+}
@@ -0,0 +1,64 @@
+package com.jxdp.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接口限流配置
+ */
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+@Data
+public class RateLimitProperties {
+
+    /**
+     * 是否开启限流
+     */
+    private boolean enabled = false;
+    /**
+     * 限流规则，一个请求按顺序匹配第一条规则
+     */
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 规则名，作为redis中用户维度限流key的一部分
+         */
+        private String name;
+        /**
+         * 接口路径，支持ant风格和路径变量，例如 /voucher-order/seckill/{id}
+         */
+        private String path;
+        /**
+         * 路径变量id(优惠卷id)对应的秒杀券在本实例已经售罄时不限流，请求在业务层本地直接返回
+         */
+        private boolean skipSoldOut = false;
+        /**
+         * 第一层：本实例令牌桶每秒生成的令牌数，小于等于0表示不限制
+         */
+        private double permitsPerSecond = 0;
+        /**
+         * 本实例令牌桶的容量(允许的突发请求数)，小于等于0时等于permitsPerSecond
+         */
+        private int burst = 0;
+        /**
+         * 第二层：redis滑动窗口(按当前和上一个固定窗口的计数近似)的窗口大小
+         */
+        private Duration window = Duration.ofSeconds(1);
+        /**
+         * 每个用户在窗口内允许的请求数，小于等于0表示不限制
+         */
+        private int userLimit = 0;
+        /**
+         * 每个资源(路径变量的值，例如同一张优惠卷；路径中没有变量时为整条规则)在窗口内允许的请求数(所有实例合计)，
+         * 小于等于0表示不限制
+         */
+        private int resourceLimit = 0;
+    }
+}
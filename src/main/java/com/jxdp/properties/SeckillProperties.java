@@ -0,0 +1,396 @@
+package com.jxdp.properties;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import com.jxdp.utils.RedisConstants;
+
+import java.time.Duration;
+
+/**
+ * 秒杀相关配置
+ */
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+@Data
+public class SeckillProperties {
+
+    /**
+     * 实例id，用作消费者名字的前缀、库存租约的持有者等，为空时使用 主机名:端口
+     */
+    private String instanceId;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    /**
+     * 秒杀订单状态(seckill:order:status:{orderId})的过期时间
+     */
+    private Duration orderStatusTtl = Duration.ofMinutes(30);
+
+    /**
+     * 默认的一人一单记录方式，1：set；2：bitmap(以用户id为偏移量，适合连续的用户id)；
+     * 3：分片bitmap(适合稀疏的用户id)，新增秒杀券时可以单独指定
+     */
+    private int buyerDedupe = 1;
+
+    /**
+     * 订单消息队列消费者配置
+     */
+    private StreamConsumer consumer = new StreamConsumer();
+    /**
+     * 订单消息队列(stream)配置
+     */
+    private OrderStream stream = new OrderStream();
+    /**
+     * 本地售罄标记配置
+     */
+    private SoldOut soldOut = new SoldOut();
+    /**
+     * 库存租约配置
+     */
+    private Lease lease = new Lease();
+    /**
+     * 秒杀排队(虚拟等候室)配置
+     */
+    private WaitingRoom waitingRoom = new WaitingRoom();
+    /**
+     * redis与数据库库存对账配置
+     */
+    private Reconcile reconcile = new Reconcile();
+    /**
+     * 超时未支付订单取消配置
+     */
+    private Cancel cancel = new Cancel();
+    /**
+     * 订单stream裁剪配置
+     */
+    private Trim trim = new Trim();
+    /**
+     * 秒杀预热配置
+     */
+    private WarmUp warmUp = new WarmUp();
+    /**
+     * 本地订单日志配置
+     */
+    private Journal journal = new Journal();
+    /**
+     * 购买资格批量判断配置
+     */
+    private Batch batch = new Batch();
+
+    public String getInstanceId() {
+        if (StrUtil.isBlank(instanceId)) {
+            instanceId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        return instanceId;
+    }
+
+    @Data
+    public static class StreamConsumer {
+        /**
+         * 消费者组名
+         */
+        private String group = "g1";
+        /**
+         * 每个实例中每个分区的消费线程数，每个线程都是消费者组中的一个消费者
+         */
+        private int workers = 1;
+        /**
+         * 每次XREADGROUP读取的订单数量，1表示逐条处理(原有的处理方式)，大于1开启批量下单
+         */
+        private int batchSize = 1;
+        /**
+         * 读取消息时的最长阻塞时间，有消息时会立即返回，不会等到凑满batchSize
+         */
+        private Duration maxWait = Duration.ofSeconds(2);
+        /**
+         * pending-list中的消息空闲超过该时间才会被其他消费者认领重试
+         */
+        private Duration pendingMinIdle = Duration.ofSeconds(30);
+        /**
+         * 检查整个消费者组pending-list的间隔
+         */
+        private Duration recoverInterval = Duration.ofSeconds(10);
+        /**
+         * 消息的最大投递次数，超过后转入死信队列(数据库故障导致的失败不计入投递次数)
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 处理失败后重试自己pending-list中的消息之前的退避时间，连续失败时翻倍，
+         * 同时只重试空闲超过退避时间的消息
+         */
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        /**
+         * 最长的退避时间
+         */
+        private Duration maxRetryBackoff = Duration.ofSeconds(30);
+        /**
+         * 订单落库方式
+         */
+        private PersistMode persistMode = PersistMode.LOCKED;
+        /**
+         * 关闭时等待正在处理的消息处理完的最长时间，需要小于spring.lifecycle.timeout-per-shutdown-phase
+         */
+        private Duration drainTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class SoldOut {
+        /**
+         * 本地售罄标记的有效时间，过期后重新执行一次lua脚本确认(防止补货通知丢失)
+         */
+        private Duration ttl = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Lease {
+        /**
+         * 是否开启库存租约：每个实例一次从redis租用一批库存，在本地扣减
+         */
+        private boolean enabled = false;
+        /**
+         * 每次租用的库存数量
+         */
+        private int blockSize = 50;
+        /**
+         * 超过该时间没有请求就归还本地剩余的库存
+         */
+        private Duration idleTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class WaitingRoom {
+        /**
+         * 是否开启排队：用户先领取排队号，按release-rate的速率放行后才能下单
+         */
+        private boolean enabled = false;
+        /**
+         * 每秒放行的人数
+         */
+        private int releaseRate = 500;
+        /**
+         * 排队号的过期时间，需要大于秒杀活动的持续时间
+         */
+        private Duration ticketTtl = Duration.ofHours(2);
+    }
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 是否开启对账，对账间隔通过hmdp.seckill.reconcile.interval(毫秒)配置
+         */
+        private boolean enabled = true;
+        /**
+         * 发现不一致时是否以数据库为准修复redis库存，关闭时只记录日志；订单所在的stream分区还有积压或pending消息时不修复
+         */
+        private boolean repair = false;
+        /**
+         * 每次对账的秒杀券数量
+         */
+        private int pageSize = 20;
+        /**
+         * 连续多少次对账差异相同才认为是真的不一致(排除还在stream中排队的订单)
+         */
+        private int stableScans = 3;
+        /**
+         * 秒杀结束后继续对账的时间
+         */
+        private Duration endedGrace = Duration.ofDays(1);
+    }
+
+    @Data
+    public static class Cancel {
+        /**
+         * 是否取消超时未支付的订单，轮询间隔通过hmdp.seckill.cancel.poll-interval(毫秒)配置
+         * 注意：开启前必须有支付流程在payTimeout之内把订单改为已支付状态(status、pay_time)，
+         * 否则所有订单都会在超时后被取消并归还库存
+         */
+        private boolean enabled = false;
+        /**
+         * 支付超时时间，从订单落库开始计算
+         */
+        private Duration payTimeout = Duration.ofMinutes(15);
+        /**
+         * 每次认领的订单数量
+         */
+        private int batchSize = 100;
+        /**
+         * 认领后没有处理完成(实例宕机)的订单，经过这个时间后重新认领
+         */
+        private Duration retryDelay = Duration.ofMinutes(1);
+    }
+
+    @Data
+    public static class Trim {
+        /**
+         * 是否裁剪已经确认的消息，裁剪间隔通过hmdp.seckill.trim.interval(毫秒)配置
+         * 裁剪使用XTRIM MINID，需要redis 6.2+，默认关闭
+         */
+        private boolean enabled = false;
+        /**
+         * 已经确认的消息至少保留这么长时间
+         */
+        private Duration retention = Duration.ofMinutes(10);
+        /**
+         * stream的最大长度，0表示不限制；超出时未确认的消息也会被删除，只用于兜底
+         */
+        private long maxLen = 0;
+        /**
+         * 裁剪之前是否把消息归档到本地的gzip文件
+         */
+        private boolean archive = false;
+        /**
+         * 归档文件的目录
+         */
+        private String archiveDir = "archive/stream";
+        /**
+         * 归档时每次XRANGE读取的消息数量
+         */
+        private int archiveBatchSize = 1000;
+        /**
+         * 每次最多归档的消息数量
+         */
+        private long maxArchivePerRun = 100000;
+    }
+
+    @Data
+    public static class WarmUp {
+        /**
+         * 是否开启预热，检查间隔通过hmdp.seckill.warm-up.interval(毫秒)配置
+         */
+        private boolean enabled = true;
+        /**
+         * 秒杀开始前多长时间开始预热
+         */
+        private Duration lead = Duration.ofMinutes(5);
+        /**
+         * 预热连接池时的并发数，建议和连接池的大小一致
+         */
+        private int prefillConnections = 10;
+    }
+
+    @Data
+    public static class Journal {
+        /**
+         * 是否开启本地订单日志，数据库熔断时订单先写入本地日志，回放间隔通过hmdp.seckill.journal.replay-interval(毫秒)配置
+         */
+        private boolean enabled = false;
+        /**
+         * 日志目录
+         */
+        private String dir = "journal";
+        /**
+         * 每个分段文件的大小(字节)
+         */
+        private long segmentSize = 64L * 1024 * 1024;
+        /**
+         * 下单耗时超过这个时间算一次失败
+         */
+        private Duration slowThreshold = Duration.ofSeconds(2);
+        /**
+         * 连续失败多少次打开熔断器
+         */
+        private int failureThreshold = 3;
+        /**
+         * 熔断器打开多长时间后放行请求试探数据库
+         */
+        private Duration openDuration = Duration.ofSeconds(30);
+        /**
+         * 每次回放的订单数量
+         */
+        private int replayBatchSize = 500;
+        /**
+         * 还没有回放的订单数(seckill:journal:pending:{实例id})的过期时间，实例运行期间不断续期，
+         * 实例宕机后超过这个时间不再让库存对账跳过这些优惠卷；实例重启后会根据日志重新登记
+         */
+        private Duration pendingTtl = Duration.ofMinutes(10);
+    }
+
+    @Data
+    public static class Batch {
+        /**
+         * 是否开启购买资格的批量判断
+         */
+        private boolean enabled = false;
+        /**
+         * 收集一批请求的时间窗口，也是每个请求最多多等待的时间
+         */
+        private Duration window = Duration.ofNanos(500_000);
+        /**
+         * 每批最多的请求数量，达到后立即执行
+         */
+        private int maxSize = 64;
+        /**
+         * 等待这一批执行结果的最长时间，超时后还没有开始执行的请求从批次中撤回，请求失败
+         */
+        private Duration timeout = Duration.ofSeconds(1);
+    }
+
+    public enum PersistMode {
+        /**
+         * 原有的方式：逐条下单时先获取用户的分布式锁，再count判断是否重复下单
+         */
+        LOCKED,
+        /**
+         * 无锁幂等：INSERT IGNORE + 按实际插入行数扣库存，
+         * 需要tb_voucher_order上有唯一索引 UNIQUE KEY uk_user_voucher (user_id, voucher_id)(db/voucher_order_uk_user_voucher.sql)，
+         * 所以每人只能有一个订单，不支持每人限购多张的秒杀券
+         */
+        IDEMPOTENT
+    }
+
+    @Data
+    public static class OrderStream {
+        /**
+         * 分区数量，1表示只使用stream.orders一个stream，
+         * 大于1时订单按分区键写入 stream.orders:0 ~ stream.orders:n-1，每个分区都有自己的消费者，
+         * 分区只是把消费(XREADGROUP、pending-list)分散到多个stream上，所有分区仍然在同一个redis中
+         * 注意：减少分区数(包括从1改成多个)之前需要先把原有stream中的消息消费完
+         */
+        private int partitions = 1;
+        /**
+         * 分区键
+         */
+        private PartitionKey partitionKey = PartitionKey.VOUCHER;
+
+        /**
+         * 根据优惠卷id或用户id计算订单所在的stream
+         */
+        public String keyOf(Long voucherId, Long userId) {
+            if (partitions <= 1) {
+                return RedisConstants.SECKILL_ORDER_STREAM_KEY;
+            }
+            long hash = partitionKey == PartitionKey.USER ? userId : voucherId;
+            return keyOf((int) Math.floorMod(hash, (long) partitions));
+        }
+
+        public String keyOf(int partition) {
+            if (partitions <= 1) {
+                return RedisConstants.SECKILL_ORDER_STREAM_KEY;
+            }
+            // 注意：seckill.lua在同一个脚本中写入stream和库存、订单等key，这些key都是脚本中拼接的，没有通过KEYS声明，
+            // 所以秒杀脚本不支持redis集群，分区也不能把stream分散到集群的不同节点上，key中不使用集群的hash tag
+            return RedisConstants.SECKILL_ORDER_STREAM_KEY + ":" + partition;
+        }
+    }
+
+    public enum PartitionKey {
+        /**
+         * 按优惠卷分区，同一个优惠卷的订单在同一个stream中，批量下单时能合并扣减库存
+         */
+        VOUCHER,
+        /**
+         * 按用户分区，单个热门优惠卷的订单也能分散到多个stream中
+         */
+        USER
+    }
+}
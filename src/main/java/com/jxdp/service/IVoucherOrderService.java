@@ -4,6 +4,8 @@ import com.jxdp.dto.Result;
 import com.jxdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -19,12 +21,67 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      * @return
      */
     Result seckilloucher(Long voucherId);
+
+    /**
+     * 秒杀排队：领取排队号，返回前面还有多少人
+     * @param voucherId 优惠卷id
+     * @return SeckillQueueDTO
+     */
+    Result queueSeckill(Long voucherId);
     // Result createVoucherOrder (Long voucherId);
 
     /**
      * 用于异步下单的创建订单函数
      * @param voucherOrder
+     * @return 订单是否创建成功
+     */
+    boolean createVoucherOrder2 (VoucherOrder voucherOrder);
+
+    /**
+     * 用于异步批量下单的创建订单函数
+     * @param voucherOrders
+     */
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 幂等下单：不加锁也不count，依赖唯一索引去重，重复投递的消息不会重复扣减库存
+     * @param voucherOrders
+     * @return 因为重复下单没有创建的订单id
+     */
+    List<Long> createVoucherOrderIdempotent(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单，并归还数据库中的库存
+     * @param orderIds 订单id
+     * @return 实际取消的订单(已经支付或者已经取消的订单不会返回)
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    /**
+     * 查询死信队列中的订单消息
+     * @param count 最多返回的条数
+     * @return
+     */
+    Result queryDeadLetters(Integer count);
+
+    /**
+     * 将死信队列中的订单消息重新投递到原来的stream中
+     * @param id 死信消息id
+     * @return
+     */
+    Result replayDeadLetter(String id);
+
+    /**
+     * 丢弃死信队列中的订单消息，订单标记为失败并归还redis库存
+     * @param id 死信消息id
+     * @return
+     */
+    Result discardDeadLetter(String id);
+
+    /**
+     * 查询秒杀订单的处理状态
+     * @param orderId 订单id
      * @return
      */
-    void createVoucherOrder2 (VoucherOrder voucherOrder);
+    Result queryOrderStatus(Long orderId);
 }
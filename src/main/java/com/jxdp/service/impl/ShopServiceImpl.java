@@ -52,8 +52,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //         new Shop(), Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         // 缓存击穿问题(互斥锁)
         // Shop shop = queryWithMutex(id);
-        Shop shop = cacheClient.queryWithMapWithMutex(RedisConstants.CACHE_SHOP_KEY, id,
-                new Shop(), Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 开启本地缓存时先查询本地缓存
+        Shop shop = cacheClient.queryWithLocal(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                shopId -> cacheClient.queryWithMapWithMutex(RedisConstants.CACHE_SHOP_KEY, shopId,
+                        new Shop(), Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES));
         // 缓存击穿问题(逻辑删除)
         // Shop shop = queryWithLogicalExpire(id);
         // Shop shop = cacheClient.queryWithMapWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id,
@@ -237,8 +239,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 保证一致性：首先更新数据库，然后在删除缓存，能够最大成都保证一致性
         // 跟新数据库
         this.updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 删除缓存(包括各个实例的本地缓存)
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -2,32 +2,47 @@ package com.jxdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.jxdp.dto.Result;
+import com.jxdp.dto.SeckillQueueDTO;
 import com.jxdp.entity.VoucherOrder;
 import com.jxdp.mapper.VoucherOrderMapper;
+import com.jxdp.properties.SeckillProperties;
 import com.jxdp.service.ISeckillVoucherService;
 import com.jxdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.jxdp.service.IVoucherService;
-import com.jxdp.utils.RedisIdWorker;
+import com.jxdp.task.SeckillOrderCanceller;
+import com.jxdp.task.VoucherOrderConsumer;
+import com.jxdp.utils.IdWorker;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillAdmissionBatcher;
+import com.jxdp.utils.SeckillMetrics;
+import com.jxdp.utils.SeckillOrderStatusRecorder;
+import com.jxdp.utils.SeckillSoldOutHolder;
+import com.jxdp.utils.SeckillStockLeaser;
+import com.jxdp.utils.SeckillStockShortageException;
+import com.jxdp.utils.SeckillWaitingRoom;
+import com.jxdp.utils.SystemConstants;
 import com.jxdp.utils.UserHolder;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -43,10 +58,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     IVoucherService voucherService;
     @Resource
     ISeckillVoucherService seckillVoucherService;
+    /**
+     * id生成器，通过hmdp.id-worker.strategy选择RedisIdWorker或者SnowflakeIdWorker
+     */
     @Resource
-    RedisIdWorker redisIdWorker;
+    IdWorker idWorker;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    SeckillSoldOutHolder seckillSoldOutHolder;
+    @Resource
+    SeckillStockLeaser seckillStockLeaser;
+    @Resource
+    SeckillOrderStatusRecorder seckillOrderStatusRecorder;
+    @Resource
+    SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    SeckillMetrics seckillMetrics;
+    @Resource
+    SeckillAdmissionBatcher seckillAdmissionBatcher;
+    @Resource
+    SeckillOrderCanceller seckillOrderCanceller;
 
     /**
      * 使用Redisson就不需要自己注入分布式锁对象了，注入Redisson即可
@@ -56,98 +90,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // @Resource
     // ILock lock;
 
-    /**
-     * 异步线程任务设置好了以后，那么该如何取执行呢？
-     * 使用springboot中的@PostConstruct注解
-     * 该注解可以使得标注的方法在类初始化完以后就执行，
-     * 而从阻塞队列中取下单信息去创建订单，项目启动后就随时可能要执行的，
-     * 所以我们就需要在类初始化完以后就去执行哪个异步线程任务
-     */
-    @PostConstruct
-    private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
-
-    private static final String BUSINESS_NAME = "lock:order:";
-    // 代理对象
-    private IVoucherOrderService proxy;
-
-    // 异步处理线程池(就是一个单线程)
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    // 线程任务，用于线程池处理的任务(从消息队列中去消息进行下单)
-    private class VoucherOrderHandler implements Runnable{
-        String queenName = "stream.orders";
-        // 从阻塞队列中取下单信息进行下单
-        @Override
-        public void run() {
-            while (true){
-                try {
-                    // 1. 获取消息队列中订单信息
-                    //  XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    // 其中String是这条消息的id
-                    // Object, Object 订单信息，以键值对的形式存储
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queenName, ReadOffset.lastConsumed())
-                    );
-                    // 判断消息获取是否成功
-                    if (list == null || list.isEmpty()){
-                        // 2.1 如果获取失败，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 2.2 获取成功，则可以下单
-                    // 2.2.1 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    // 将value转化成voucherOrder类
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 下单
-                    handleVoucherOrder(voucherOrder);
-                    // ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queenName,"g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
-                }
-            }
-        }
-        private void handlePendingList() {
-            while (true){
-                try {
-                    // 1. 获取pendingList中未处理的订单信息(处理异常的订单信息)
-                    // XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queenName, ReadOffset.from("0"))
-                    );
-                    // 判断消息获取是否成功
-                    if (list == null || list.isEmpty()){
-                        // 2.1 如果获取失败，说明pending-list中没有异常消息，直接结束循环
-                        break;
-                    }
-                    // 2.2 获取成功，则可以下单
-                    // 2.2.1 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    // 将value转化成voucherOrder类
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 下单
-                    handleVoucherOrder(voucherOrder);
-                    // ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queenName,"g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
-        }
-    }
+    private static final String BUSINESS_NAME = RedisConstants.LOCK_ORDER_KEY;
 
     // // 阻塞队列
     // private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
@@ -252,30 +195,105 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckilloucher(Long voucherId) {
-        // 执行lua脚本判断该用户是否有购买资格
+        // 本地已经标记售罄了，直接返回，不再生成订单id和访问redis
+        if (seckillSoldOutHolder.isSoldOut(voucherId)){
+            return Result.fail("库存不足！");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
+        // 开启排队时，只有已经放行的用户才能下单
+        if (seckillWaitingRoom.isEnabled()){
+            long position = seckillWaitingRoom.admit(voucherId, userId);
+            if (position > 0){
+                return Result.fail("排队中，前面还有" + position + "人");
+            }
+        }
         // 获取订单id：有一个小缺点就是就算没有购买资格也会先生成一个订单id，这就导致在redis中无法判断真正的订单数量
-        long orderId = redisIdWorker.nextId("order");
-        int result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        ).intValue();
+        // 在扣减本地租约库存之前生成，id生成失败时不需要归还库存
+        long orderId = idWorker.nextId("order");
+        // 库存租约模式：先扣减本地库存，lua脚本中只判断一人一单
+        boolean leased = seckillProperties.getLease().isEnabled();
+        if (leased && !seckillStockLeaser.tryAcquire(voucherId)){
+            // redis中也没有库存了，其他实例可能还有本地库存，所以只在本地标记售罄
+            seckillSoldOutHolder.markSoldOutLocally(voucherId);
+            return Result.fail("库存不足！");
+        }
+        // 执行lua脚本判断该用户是否有购买资格
+        // 订单写入哪个分区的stream
+        String streamKey = seckillProperties.getStream().keyOf(voucherId, userId);
+        // 订单状态的过期时间，获得购买资格时lua脚本中写入QUEUED状态
+        String statusTtl = String.valueOf(seckillProperties.getOrderStatusTtl().getSeconds());
+        int result;
+        try {
+            if (seckillAdmissionBatcher.isEnabled()){
+                // 和同一时间窗口内的其他请求合并成一次lua调用
+                result = seckillAdmissionBatcher.admit(voucherId, userId, orderId, streamKey);
+            } else {
+                result = stringRedisTemplate.execute(
+                        SECKILL_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId), streamKey, leased ? "1" : "0",
+                        statusTtl, seckillProperties.getInstanceId()
+                ).intValue();
+            }
+        } catch (RuntimeException e) {
+            if (leased){
+                seckillStockLeaser.release(voucherId);
+            }
+            throw e;
+        }
+        seckillMetrics.countAdmission(result);
         // 判断是否有购买资格
         if (result != 0){
             // 没有购买资格
-            return Result.fail(result == 1 ? "库存不足！" : "不能重复下单");
+            if (leased){
+                // 本地扣减的库存没有用掉，还回去
+                seckillStockLeaser.release(voucherId);
+            } else if (result == 1){
+                // 标记售罄，并通知其他实例
+                seckillSoldOutHolder.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(result));
         }
-        /**
-         * 注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-         * 所有我们在主线程中先获取到代理对象，然后在别的线程(即异步下单的线程)那道这个代理对象调用方法，这样才能开启事务
-         */
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 下单信息已经写入stream，由VoucherOrderConsumer异步创建订单
         // 返回订单id
         return Result.ok(orderId);
     }
 
+    @Override
+    public Result queueSeckill(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()){
+            // 没有开启排队，直接放行
+            return Result.ok(new SeckillQueueDTO(0L, 0L));
+        }
+        if (seckillSoldOutHolder.isSoldOut(voucherId)){
+            return Result.fail("库存不足！");
+        }
+        Long userId = UserHolder.getUser().getId();
+        long position = seckillWaitingRoom.admit(voucherId, userId);
+        return Result.ok(new SeckillQueueDTO(position, seckillWaitingRoom.estimateWaitMillis(position)));
+    }
+
+    /**
+     * lua脚本返回值对应的错误信息
+     */
+    private static String seckillFailMessage(int result) {
+        switch (result) {
+            case 1:
+                return "库存不足！";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始！";
+            case 4:
+                return "秒杀已经结束！";
+            case 6:
+                return "秒杀活动准备中，请稍后再试！";
+            default:
+                return "该优惠卷已下架！";
+        }
+    }
+
     /**
      * 优化秒杀下单(都是串行执行，处理请求时间过长)
      * 将判断购买资格和下单分开，请求中只判断是否有购买资格(有购买资格直接生成一个订单id直接返回)
@@ -324,35 +342,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //     return Result.ok(orderId);
     // }
 
-    /**
-     * 异步下单的创建订单函数(其实就是下单过程，将阻塞队列中的下单信息存放到数据库中)
-     * @param voucherOrder
-     */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 获取用户
-        // 注意：这里就不能从LocalThread里面获取用户id了，因为已经不是同一个线程了
-        Long userId = voucherOrder.getUserId();
-        // 创建锁对象(就是根据用户id创建锁对象防止同一个用户下多单(防止一人多单的问题))
-        // 注意：这里不加锁也没事，因为我们前面已经通过lua的原子性操作解决了一人一单的问题
-        RLock redisLock = redissonClient.getLock(BUSINESS_NAME + userId);
-        // 尝试获取锁
-        boolean isLock = redisLock.tryLock();
-        // 4.判断是否获得锁成功
-        if (!isLock){
-            // 获取锁失败，直接返回失败或者重试
-            // 注意：这里就不需要返回给前端了，因为前端的请求已经处理完了，这是异步下单的过程
-            log.error("不允许重复下单！");
-            return;
-        }
-        try {
-            // 通过代理对象调用下单操作(就是将下单信息存放到数据库中)
-            proxy.createVoucherOrder2(voucherOrder);
-        }finally {
-            // 释放锁
-            redisLock.unlock();
-        }
-    }
-
     // @Transactional
     // public Result createVoucherOrder (Long voucherId){
     //     // 根据用户id和优惠卷id查询订单数量
@@ -390,16 +379,28 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // }
 
     @Transactional
-    public void createVoucherOrder2(VoucherOrder voucherOrder){
+    public boolean createVoucherOrder2(VoucherOrder voucherOrder){
         // 根据用户id和优惠卷id查询订单数量
         // 这里也是异步线程，也不能使用threadLocal
         Long userId = voucherOrder.getUserId();
         // 由于前面用例lua脚本，这里我感觉也是没有必要再去判断了，不过为了以防万一还是可以判断一下
-        Integer count = this.query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0){
+        long start = System.nanoTime();
+        // 消息重复投递(落库后进程崩溃或XACK失败)：这个订单已经落库了，按创建成功处理，
+        // 否则下面的count会把它自己算进去，误判为重复下单并把订单状态改成FAILED
+        if (this.getById(voucherOrder.getId()) != null){
+            seckillMetrics.recordStage("count", start);
+            return true;
+        }
+        // 已取消的订单不算
+        Integer count = this.query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId())
+                .ne("status", SystemConstants.ORDER_STATUS_CANCELLED).count();
+        seckillMetrics.recordStage("count", start);
+        // 每人限购多张时，按限购数量判断
+        int userLimit = voucherOrder.getUserLimit() == null ? 1 : voucherOrder.getUserLimit();
+        if (count >= userLimit){
             // 用户已经购买过了
             log.error("用户已经购买过了");
-            return ;
+            return false;
         }
         // 扣减库存
         /**
@@ -408,16 +409,209 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
          * 问题：失败率过高
          * 解决方法：判断库存是否大于0即可，如果大于0我随便你减库存，但是当减到0的时候，后面的线程就全部失败
          */
+        start = System.nanoTime();
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1")
                 .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock", 0)
                 .update();
+        seckillMetrics.recordStage("update", start);
         if (!success){
             // 用户已经购买过了
             log.error("用户已经购买过了");
-            return ;
+            return false;
         }
+        start = System.nanoTime();
         this.save(voucherOrder);
+        seckillMetrics.recordStage("insert", start);
+        return true;
+    }
+
+    /**
+     * 批量下单
+     * 1. 不再逐条加锁和count，一人一单已经由lua脚本保证了，这里只需要按主键过滤掉重复投递的订单
+     * 2. 同一个优惠卷的库存合并成一条update语句扣减
+     * 3. 订单通过saveBatch(JDBC批量)插入
+     * 任意一步失败整个事务回滚，消息仍在pending-list中，之后会逐条重新处理
+     * @param voucherOrders
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders){
+        // 过滤掉已经落库的订单(消息重复投递)，根据主键查询，不会扫表
+        long start = System.nanoTime();
+        List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = this.listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        seckillMetrics.recordStage("dedupe", start);
+        List<VoucherOrder> newOrders = voucherOrders.stream()
+                .filter(voucherOrder -> !existIds.contains(voucherOrder.getId()))
+                .collect(Collectors.toList());
+        if (newOrders.isEmpty()){
+            return;
+        }
+        // 按优惠卷聚合扣减的库存数量
+        Map<Long, Long> stockMap = newOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        start = System.nanoTime();
+        for (Map.Entry<Long, Long> entry : stockMap.entrySet()) {
+            Long count = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", count)
+                    .update();
+            if (!success){
+                // 抛出异常回滚整个批次，交给pending-list(或者日志回放)逐条处理
+                throw new SeckillStockShortageException(entry.getKey());
+            }
+        }
+        seckillMetrics.recordStage("update", start);
+        start = System.nanoTime();
+        this.saveBatch(newOrders, newOrders.size());
+        seckillMetrics.recordStage("insert", start);
+    }
+
+    /**
+     * 幂等下单(无锁)
+     * 依赖tb_voucher_order上(user_id, voucher_id)的唯一索引：
+     * 1. 按优惠卷分组，每组一条 INSERT IGNORE 语句，主键冲突(消息重复投递)和唯一索引冲突(重复下单)的订单都会被忽略
+     * 2. 只按实际插入的行数扣减库存，所以同一条消息无论投递多少次都只会扣一次库存
+     * 不再需要分布式锁和count查询，热点路径上只有insert和update两条语句
+     * @param voucherOrders
+     */
+    @Override
+    @Transactional
+    public List<Long> createVoucherOrderIdempotent(List<VoucherOrder> voucherOrders){
+        List<Long> duplicateIds = new ArrayList<>();
+        Map<Long, List<VoucherOrder>> orderMap = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : orderMap.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            long start = System.nanoTime();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            seckillMetrics.recordStage("insert", start);
+            if (inserted < orders.size()){
+                // 有订单被忽略了(很少发生)，按主键查出哪些订单已经存在，不存在的就是重复下单的订单
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> existIds = this.listByIds(ids).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                ids.stream().filter(id -> !existIds.contains(id)).forEach(duplicateIds::add);
+            }
+            if (inserted == 0){
+                // 全部都是重复的订单
+                continue;
+            }
+            start = System.nanoTime();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", inserted)
+                    .update();
+            seckillMetrics.recordStage("update", start);
+            if (!success){
+                throw new RuntimeException("库存不足，下单失败，voucherId: " + entry.getKey());
+            }
+        }
+        return duplicateIds;
+    }
+
+    /**
+     * 取消超时未支付的订单
+     * 先按主键锁住仍然是未支付状态的订单(避免和支付并发)，再改为已取消，库存按优惠卷合并成一条update归还
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds){
+        List<VoucherOrder> unpaidOrders = this.query()
+                .in("id", orderIds)
+                .eq("status", SystemConstants.ORDER_STATUS_UNPAID)
+                .last("for update")
+                .list();
+        if (unpaidOrders.isEmpty()){
+            return unpaidOrders;
+        }
+        List<Long> ids = unpaidOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        this.update()
+                .set("status", SystemConstants.ORDER_STATUS_CANCELLED)
+                .in("id", ids)
+                .update();
+        Map<Long, Long> stockMap = unpaidOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : stockMap.entrySet()) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + entry.getValue())
+                    .eq("voucher_id", entry.getKey())
+                    .update();
+        }
+        return unpaidOrders;
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        // XRANGE stream.orders.dlq - + COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                RedisConstants.SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        List<Map<Object, Object>> deadLetters = records.stream().map(record -> {
+            Map<Object, Object> value = new LinkedHashMap<>();
+            value.put("messageId", record.getId().getValue());
+            value.putAll(record.getValue());
+            return value;
+        }).collect(Collectors.toList());
+        return Result.ok(deadLetters);
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        String dlqKey = RedisConstants.SECKILL_ORDER_DLQ_KEY;
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(dlqKey, Range.just(id));
+        if (records == null || records.isEmpty()){
+            return Result.fail("死信消息不存在！");
+        }
+        Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+        // 去掉死信相关的字段，还原成原来的下单信息，重新投递到原来的stream中
+        String sourceStream = (String) value.remove(VoucherOrderConsumer.DLQ_SOURCE_STREAM);
+        value.remove(VoucherOrderConsumer.DLQ_SOURCE_ID);
+        value.remove(VoucherOrderConsumer.DLQ_DELIVERY_COUNT);
+        if (sourceStream == null){
+            sourceStream = RedisConstants.SECKILL_ORDER_STREAM_KEY;
+        }
+        RecordId recordId = stringRedisTemplate.opsForStream().add(sourceStream, value);
+        stringRedisTemplate.opsForStream().delete(dlqKey, id);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
+    @Override
+    public Result discardDeadLetter(String id) {
+        String dlqKey = RedisConstants.SECKILL_ORDER_DLQ_KEY;
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(dlqKey, Range.just(id));
+        if (records == null || records.isEmpty()){
+            return Result.fail("死信消息不存在！");
+        }
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(records.get(0).getValue(), new VoucherOrder(), true);
+        List<Long> orderIds = Collections.singletonList(voucherOrder.getId());
+        if (this.getById(voucherOrder.getId()) != null){
+            // 订单其实已经落库了(例如落库成功后ACK失败)，只删除死信消息
+            seckillOrderStatusRecorder.markCreated(orderIds);
+        } else {
+            seckillOrderCanceller.releaseDiscarded(voucherOrder);
+            seckillOrderStatusRecorder.markFailed(orderIds);
+        }
+        stringRedisTemplate.opsForStream().delete(dlqKey, id);
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        SeckillOrderStatusRecorder.Status status = seckillOrderStatusRecorder.get(orderId, userId);
+        if (status == null){
+            // 状态已经过期，按订单id和当前用户查询一次数据库；
+            // 没有查到时订单可能还积压在消息队列、死信队列或本地日志中，不能直接判定为失败
+            boolean created = query().eq("id", orderId).eq("user_id", userId).count() > 0;
+            status = created ? SeckillOrderStatusRecorder.Status.CREATED : SeckillOrderStatusRecorder.Status.UNKNOWN;
+        }
+        return Result.ok(status.name());
     }
 }
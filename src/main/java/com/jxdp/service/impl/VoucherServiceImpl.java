@@ -4,10 +4,12 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.jxdp.dto.Result;
 import com.jxdp.entity.Voucher;
 import com.jxdp.mapper.VoucherMapper;
+import com.jxdp.properties.SeckillProperties;
 import com.jxdp.entity.SeckillVoucher;
 import com.jxdp.service.ISeckillVoucherService;
 import com.jxdp.service.IVoucherService;
-import com.jxdp.utils.RedisConstants;
+import com.jxdp.task.SeckillWarmer;
+import com.jxdp.utils.SystemConstants;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -29,6 +31,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     StringRedisTemplate stringRedisTemplate;
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillWarmer seckillWarmer;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -41,6 +47,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
+        int userLimit = voucher.getUserLimit() == null ? 1 : voucher.getUserLimit();
+        if (userLimit > 1 && seckillProperties.getConsumer().getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT){
+            // 幂等下单依赖(user_id, voucher_id)唯一索引，每人只能有一个订单
+            throw new IllegalArgumentException("幂等下单模式下不支持每人限购多张");
+        }
+        int buyerDedupe = voucher.getBuyerDedupe() != null ? voucher.getBuyerDedupe() : seckillProperties.getBuyerDedupe();
+        if (buyerDedupe < SystemConstants.BUYER_DEDUPE_SET || buyerDedupe > SystemConstants.BUYER_DEDUPE_SHARDED_BITMAP){
+            throw new IllegalArgumentException("不支持的一人一单记录方式：" + buyerDedupe);
+        }
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
@@ -49,12 +64,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 限购数量和一人一单的记录方式也保存到数据库中，redis被清空后预热时还能恢复
+        seckillVoucher.setUserLimit(userLimit);
+        seckillVoucher.setBuyerDedupe(buyerDedupe);
         seckillVoucherService.save(seckillVoucher);
         /**
          * 将判断购买资格和下单分为两个过程
          * 判断购买资格放在redis中执行，下单进行异步下单
          * key的设计：业务名字：库存：哪个优惠卷的库存(id)
          */
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 秒杀券元数据(lua脚本中判断秒杀时间、状态和限购数量，不需要再查询数据库)和库存，与秒杀预热使用同一个脚本
+        seckillWarmer.preload(seckillVoucher, voucher.getStatus());
     }
 }
@@ -0,0 +1,153 @@
+package com.jxdp.task;
+
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.IVoucherOrderService;
+import com.jxdp.utils.OrderJournal;
+import com.jxdp.utils.SeckillDbBreaker;
+import com.jxdp.utils.SeckillMetrics;
+import com.jxdp.utils.SeckillOrderStatusRecorder;
+import com.jxdp.utils.SeckillStockShortageException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 本地订单日志的回放
+ * 数据库熔断器允许访问(关闭或者半开)时，从回放进度开始每次读取一批日志中的订单批量写入数据库，
+ * 回放的结果也报告给熔断器(秒杀结束后没有消费者访问数据库，熔断器需要由回放试探并关闭)，
+ * 写入之后再更新订单状态、加入超时取消队列，最后保存回放进度
+ * 保存回放进度之前宕机的话同一批订单会被再次回放，所以回放前先按主键过滤掉已经落库的订单
+ * 日志在本地磁盘上，只能由写入它的实例回放，不需要分布式锁；
+ * 回放任务同时为本实例还没有回放的订单数续期，实例宕机后由过期时间清理，见OrderJournal
+ */
+@Slf4j
+@Component
+public class OrderJournalReplayer {
+    @Resource
+    OrderJournal orderJournal;
+    @Resource
+    SeckillDbBreaker seckillDbBreaker;
+    @Resource
+    IVoucherOrderService voucherOrderService;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    SeckillOrderStatusRecorder seckillOrderStatusRecorder;
+    @Resource
+    SeckillOrderCanceller seckillOrderCanceller;
+    @Resource
+    SeckillMetrics seckillMetrics;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.journal.replay-interval:1000}")
+    public void replay(){
+        if (orderJournal.isEnabled()){
+            orderJournal.keepAlive();
+        }
+        // 熔断器打开期间不回放，避免加重数据库的负担；
+        // 超过openDuration后由回放自己试探数据库(秒杀结束后没有消费者下单，不能依赖消费者关闭熔断器)
+        if (!orderJournal.isEnabled() || !orderJournal.hasPending() || !seckillDbBreaker.allowRequest()){
+            return;
+        }
+        try {
+            while (seckillDbBreaker.allowRequest() && orderJournal.hasPending()){
+                OrderJournal.Batch batch = orderJournal.read(Math.max(1, seckillProperties.getJournal().getReplayBatchSize()));
+                if (!batch.orders.isEmpty()){
+                    replayBatch(batch.orders);
+                }
+                orderJournal.commit(batch);
+            }
+        } catch (Exception e) {
+            log.error("回放本地订单日志异常", e);
+        }
+    }
+
+    private void replayBatch(List<VoucherOrder> voucherOrders){
+        // 过滤掉上一次回放中已经落库的订单，以及重复写入日志的订单(写入日志后ACK失败，消息被再次投递)
+        Map<Long, VoucherOrder> distinct = new LinkedHashMap<>();
+        voucherOrders.forEach(voucherOrder -> distinct.putIfAbsent(voucherOrder.getId(), voucherOrder));
+        Set<Long> existing;
+        long start = System.nanoTime();
+        try {
+            existing = voucherOrderService.listByIds(distinct.keySet()).stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            seckillDbBreaker.recordSuccess(System.nanoTime() - start);
+        } catch (DataAccessException | TransactionException e) {
+            seckillDbBreaker.recordFailure();
+            throw e;
+        }
+        List<VoucherOrder> pending = distinct.values().stream()
+                .filter(voucherOrder -> !existing.contains(voucherOrder.getId()))
+                .collect(Collectors.toList());
+        List<Long> createdIds = new ArrayList<>(existing);
+        List<Long> failedIds = new ArrayList<>();
+        List<Long> duplicateIds = new ArrayList<>();
+        if (!pending.isEmpty()){
+            start = System.nanoTime();
+            try {
+                if (seckillProperties.getConsumer().getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT){
+                    duplicateIds.addAll(voucherOrderService.createVoucherOrderIdempotent(pending));
+                    failedIds.addAll(duplicateIds);
+                } else {
+                    voucherOrderService.createVoucherOrderBatch(pending);
+                }
+                seckillDbBreaker.recordSuccess(System.nanoTime() - start);
+            } catch (DataIntegrityViolationException | SeckillStockShortageException e) {
+                // 批量下单的事务已经回滚，逐条下单找出有问题的订单，不能让一批有问题的订单卡住整个日志的回放
+                log.warn("批量回放订单失败，改为逐条回放", e);
+                failedIds.clear();
+                duplicateIds.clear();
+                for (VoucherOrder voucherOrder : pending) {
+                    if (!replayOne(voucherOrder)){
+                        failedIds.add(voucherOrder.getId());
+                    }
+                }
+            } catch (DataAccessException | TransactionException e) {
+                // 数据库又出问题了，这一批留到下一次回放
+                seckillDbBreaker.recordFailure();
+                throw e;
+            }
+            List<VoucherOrder> duplicates = new ArrayList<>();
+            for (VoucherOrder voucherOrder : pending) {
+                if (!failedIds.contains(voucherOrder.getId())){
+                    createdIds.add(voucherOrder.getId());
+                } else if (duplicateIds.contains(voucherOrder.getId())){
+                    duplicates.add(voucherOrder);
+                }
+            }
+            // 幂等下单时被唯一索引忽略的重复订单，归还redis库存
+            seckillOrderCanceller.releaseDuplicates(duplicates);
+        }
+        seckillOrderStatusRecorder.markCreated(createdIds);
+        seckillOrderStatusRecorder.markFailed(failedIds);
+        seckillOrderCanceller.schedule(createdIds);
+        seckillMetrics.countCreated(createdIds.size() - existing.size());
+        seckillMetrics.countFailed(failedIds.size());
+        log.info("回放本地订单日志 {} 条，成功 {} 条，失败 {} 条", voucherOrders.size(), createdIds.size(), failedIds.size());
+    }
+
+    /**
+     * 逐条回放一个订单，数据库异常继续抛出(这一批留到下一次回放)，订单本身有问题时返回false
+     */
+    private boolean replayOne(VoucherOrder voucherOrder){
+        try {
+            return voucherOrderService.createVoucherOrder2(voucherOrder);
+        } catch (DataIntegrityViolationException e) {
+            log.error("回放订单失败，orderId: {}", voucherOrder.getId(), e);
+            return false;
+        } catch (DataAccessException | TransactionException e) {
+            seckillDbBreaker.recordFailure();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.jxdp.task;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.json.JSONUtil;
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 订单stream的裁剪和归档
+ * seckill.lua每下一单就XADD一条消息，消息确认之后仍然留在stream中，不裁剪的话redis内存会一直增长
+ * 1. 对每个消费者组，pending-list不为空时最早的pending消息之前都已经确认了，否则最后投递的消息之前都已经确认了，
+ *    取所有消费者组中最小的那个id，再和保留时间取较小值，通过 XTRIM MINID 删除更早的消息(需要redis 6.2+)
+ * 2. 开启归档时，裁剪之前先把要删除的消息按天追加写入本地的gzip文件(每次追加一个gzip成员，zcat可以直接读取)，
+ *    归档失败就不裁剪
+ * 3. 可选的MAXLEN上限：消费者长时间宕机时兜底限制内存，超出的消息不管是否确认都会被删除
+ * 多个实例通过分布式锁保证同一时间只有一个实例在裁剪
+ */
+@Slf4j
+@Component
+public class OrderStreamTrimmer {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    RedissonClient redissonClient;
+
+    private static final String LOCK_KEY = "lock:stream:trim";
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.trim.interval:60000}")
+    public void trim(){
+        SeckillProperties.Trim config = seckillProperties.getTrim();
+        if (!config.isEnabled()){
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()){
+            return;
+        }
+        try {
+            SeckillProperties.OrderStream streamConfig = seckillProperties.getStream();
+            for (int p = 0; p < Math.max(1, streamConfig.getPartitions()); p++) {
+                String key = streamConfig.keyOf(p);
+                try {
+                    trimStream(key, config);
+                } catch (Exception e) {
+                    log.error("裁剪订单stream失败: {}", key, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void trimStream(String key, SeckillProperties.Trim config) throws IOException {
+        if (config.getMaxLen() > 0){
+            // XTRIM key MAXLEN ~ maxLen
+            stringRedisTemplate.opsForStream().trim(key, config.getMaxLen(), true);
+        }
+        RecordId minId = minAcknowledgedId(key);
+        if (minId == null){
+            return;
+        }
+        // 保留最近一段时间的消息，方便排查问题
+        RecordId retentionId = RecordId.of(System.currentTimeMillis() - config.getRetention().toMillis(), 0);
+        if (compare(retentionId, minId) < 0){
+            minId = retentionId;
+        }
+        if (config.isArchive()){
+            minId = archive(key, minId, config);
+            if (minId == null){
+                return;
+            }
+        }
+        // XTRIM key MINID minId，删除id小于minId的消息
+        String trimId = minId.getValue();
+        Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("XTRIM",
+                key.getBytes(StandardCharsets.UTF_8),
+                "MINID".getBytes(StandardCharsets.UTF_8),
+                trimId.getBytes(StandardCharsets.UTF_8)));
+        if (trimmed != null && trimmed > 0){
+            log.info("裁剪订单stream {}，删除了 {} 条已确认的消息，minId: {}", key, trimmed, trimId);
+        }
+    }
+
+    /**
+     * 所有消费者组都已经确认的消息中最大的那个id的下界，小于这个id的消息都可以删除
+     * @return 没有消费者组时返回null
+     */
+    private RecordId minAcknowledgedId(String key){
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+        if (groups == null || groups.isEmpty()){
+            return null;
+        }
+        RecordId minId = null;
+        for (StreamInfo.XInfoGroup group : groups.stream().collect(Collectors.toList())) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(key, group.groupName());
+            RecordId groupId = summary != null && summary.getTotalPendingMessages() > 0
+                    ? summary.minRecordId()
+                    : RecordId.of(group.lastDeliveredId());
+            if (minId == null || compare(groupId, minId) < 0){
+                minId = groupId;
+            }
+        }
+        return minId;
+    }
+
+    /**
+     * 把id小于minId的消息追加写入归档文件
+     * @return 实际可以裁剪到的id(达到单次归档上限时会小于minId)，归档失败时抛出异常
+     */
+    private RecordId archive(String key, RecordId minId, SeckillProperties.Trim config) throws IOException {
+        String fileName = key.replaceAll("[^A-Za-z0-9.]", "_") + "-" + LocalDate.now().format(DATE_FORMATTER) + ".jsonl.gz";
+        File file = FileUtil.file(config.getArchiveDir(), fileName);
+        FileUtil.mkParentDirs(file);
+        long archived = 0;
+        String lowerId = null;
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file, true))) {
+            while (archived < config.getMaxArchivePerRun()){
+                Range.Bound<String> lower = lowerId == null ? Range.Bound.unbounded() : Range.Bound.exclusive(lowerId);
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(key,
+                        Range.of(lower, Range.Bound.exclusive(minId.getValue())),
+                        RedisZSetCommands.Limit.limit().count(config.getArchiveBatchSize()));
+                if (records == null || records.isEmpty()){
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("id", record.getId().getValue());
+                    line.put("stream", key);
+                    line.put("value", record.getValue());
+                    out.write(JSONUtil.toJsonStr(line).getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
+                }
+                archived += records.size();
+                lowerId = records.get(records.size() - 1).getId().getValue();
+            }
+        }
+        if (archived == 0){
+            return minId;
+        }
+        log.info("归档订单stream {} 的 {} 条消息到 {}", key, archived, file.getAbsolutePath());
+        if (archived < config.getMaxArchivePerRun()){
+            return minId;
+        }
+        // 达到单次归档上限，只裁剪已经归档的消息，剩下的下次再归档
+        RecordId last = RecordId.of(lowerId);
+        return RecordId.of(last.getTimestamp(), last.getSequence() + 1);
+    }
+
+    private static int compare(RecordId a, RecordId b){
+        int result = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return result != 0 ? result : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
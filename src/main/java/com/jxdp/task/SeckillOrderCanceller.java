@@ -0,0 +1,147 @@
+package com.jxdp.task;
+
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.IVoucherOrderService;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillSoldOutHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 超时未支付订单的取消
+ * 订单落库后放入redis的延迟队列seckill:order:delay(zset，分数是支付截止时间)，
+ * 定时任务每次认领一批到期的订单：
+ * 1. 数据库中把仍然是未支付状态的订单改为已取消，并按优惠卷合并归还库存，都在一个事务中
+ * 2. redis中归还库存并清除用户的购买记录，通知各个实例清除售罄标记
+ * 3. 从延迟队列中删除这批订单
+ * 不需要为每个订单创建定时器，也不需要扫描订单表，数据库只有按主键的查询和更新
+ * 第1步之后实例宕机的话，redis库存会比数据库少，由SeckillStockReconciler对账发现
+ */
+@Slf4j
+@Component
+public class SeckillOrderCanceller {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    IVoucherOrderService voucherOrderService;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    SeckillSoldOutHolder seckillSoldOutHolder;
+
+    private static final DefaultRedisScript<List<Object>> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+    static {
+        @SuppressWarnings("unchecked")
+        Class<List<Object>> listType = (Class<List<Object>>) (Class<?>) List.class;
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_delay_claim.lua"));
+        CLAIM_SCRIPT.setResultType(listType);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 订单落库后加入延迟队列，到期后仍未支付就取消
+     */
+    public void schedule(Collection<Long> orderIds){
+        SeckillProperties.Cancel config = seckillProperties.getCancel();
+        if (!config.isEnabled() || orderIds.isEmpty()){
+            return;
+        }
+        byte[] key = RedisConstants.SECKILL_ORDER_DELAY_KEY.getBytes(StandardCharsets.UTF_8);
+        double deadline = System.currentTimeMillis() + config.getPayTimeout().toMillis();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                connection.zSetCommands().zAdd(key, deadline, orderId.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.cancel.poll-interval:1000}")
+    public void cancelExpiredOrders(){
+        SeckillProperties.Cancel config = seckillProperties.getCancel();
+        if (!config.isEnabled()){
+            return;
+        }
+        try {
+            // 一次处理一批，直到没有到期的订单
+            while (cancelBatch(config) >= config.getBatchSize()){
+                log.debug("继续取消下一批超时订单");
+            }
+        } catch (Exception e) {
+            log.error("取消超时订单异常", e);
+        }
+    }
+
+    /**
+     * @return 本次认领的订单数量
+     */
+    private int cancelBatch(SeckillProperties.Cancel config){
+        // 1. 认领到期的订单
+        List<?> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.emptyList(),
+                String.valueOf(config.getBatchSize()), String.valueOf(config.getRetryDelay().toMillis()));
+        if (claimed == null || claimed.isEmpty()){
+            return 0;
+        }
+        List<Long> orderIds = claimed.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+        // 2. 数据库中取消未支付的订单，归还库存
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        // 3. 归还redis库存，清除购买记录
+        if (!cancelled.isEmpty()){
+            boolean removeBuyer = seckillProperties.getConsumer().getPersistMode() != SeckillProperties.PersistMode.IDEMPOTENT;
+            returnStock(cancelled, removeBuyer);
+            log.info("取消了 {} 个超时未支付的订单", cancelled.size());
+        }
+        // 4. 从延迟队列中删除(已支付的订单也一起删除)
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_DELAY_KEY,
+                orderIds.stream().map(String::valueOf).toArray());
+        return orderIds.size();
+    }
+
+    /**
+     * 幂等下单时被唯一索引忽略的订单(用户已经有订单了)，归还它们在redis中扣减的库存
+     * 用户确实已经买过，所以保留购买记录
+     */
+    public void releaseDuplicates(List<VoucherOrder> duplicates){
+        if (duplicates.isEmpty()){
+            return;
+        }
+        returnStock(duplicates, false);
+        log.info("归还了 {} 个重复订单的redis库存", duplicates.size());
+    }
+
+    /**
+     * 丢弃的死信订单不会再落库，归还redis库存并清除购买记录，让用户可以重新抢购
+     */
+    public void releaseDiscarded(VoucherOrder voucherOrder){
+        returnStock(Collections.singletonList(voucherOrder), true);
+    }
+
+    private void returnStock(List<VoucherOrder> voucherOrders, boolean removeBuyer){
+        List<String> args = new ArrayList<>(voucherOrders.size() * 2 + 1);
+        args.add(removeBuyer ? "1" : "0");
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            args.add(voucherOrder.getVoucherId().toString());
+            args.add(voucherOrder.getUserId().toString());
+        }
+        stringRedisTemplate.execute(CANCEL_SCRIPT, Collections.emptyList(), args.toArray());
+        voucherOrders.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutHolder::markAvailable);
+    }
+}
@@ -0,0 +1,372 @@
+package com.jxdp.task;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.jxdp.entity.SeckillVoucher;
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.ISeckillVoucherService;
+import com.jxdp.service.IVoucherOrderService;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillSoldOutHolder;
+import com.jxdp.utils.SystemConstants;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * redis与数据库的秒杀库存对账
+ * lua脚本扣减了redis库存之后，如果消费者下单失败(转入死信队列、库存不足回滚等)，redis和数据库的库存就会不一致
+ * 对于每张秒杀券，正常情况下：
+ *   redis库存 + 租约中的库存 + 已购买的人数(seckill:order:{id}或bitmap) = 初始库存 = 数据库库存 + 订单数
+ * (租用的库存卖出时seckill.lua会从租约中减去，所以租约中的库存只包括实例本地还没有卖出的部分)
+ * 订单还在stream中排队时redis已经扣减、数据库还没有扣减，所以单次的差异不一定是真的不一致，
+ * 只有连续stableScans次对账差异都完全相同时才认为是真的不一致
+ * 死信队列和本地订单日志中的订单会长时间停留，差异也是稳定的，所以有这些订单的秒杀券不报告也不修复
+ * 1. 每次只对账pageSize张秒杀券(按voucher_id游标分页)，redis通过pipeline批量读取，数据库按优惠卷分组一次count，
+ *    不会在秒杀期间给数据库带来突发压力
+ * 2. 多个实例通过分布式锁保证同一时间只有一个实例在对账
+ * 3. 开启repair后以数据库为准修复redis库存，修复后库存增加时通知各个实例清除售罄标记；
+ *    订单所在的stream分区中还有没投递(lag)或者没确认(pending)的消息时不修复，这些订单落库后差异可能会自己消失
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    ISeckillVoucherService seckillVoucherService;
+    @Resource
+    IVoucherOrderService voucherOrderService;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    SeckillSoldOutHolder seckillSoldOutHolder;
+    @Resource
+    RedissonClient redissonClient;
+
+    private static final String LOCK_KEY = "lock:reconcile";
+    /**
+     * 最多扫描多少条死信消息，超过时本次不对账
+     */
+    private static final long DLQ_SCAN_LIMIT = 10000;
+
+    private static final DefaultRedisScript<Long> ADJUST_SCRIPT;
+    private static final DefaultRedisScript<Long> BUYERS_SCRIPT;
+    static {
+        BUYERS_SCRIPT = new DefaultRedisScript<>();
+        BUYERS_SCRIPT.setLocation(new ClassPathResource("seckill_buyers.lua"));
+        BUYERS_SCRIPT.setResultType(Long.class);
+        ADJUST_SCRIPT = new DefaultRedisScript<>();
+        ADJUST_SCRIPT.setLocation(new ClassPathResource("seckill_stock_adjust.lua"));
+        ADJUST_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 下一页从哪张秒杀券开始
+     */
+    private long cursor = 0;
+    /**
+     * key：优惠卷id，value：最近一次对账发现的差异
+     */
+    private final Map<Long, Diff> diffs = new ConcurrentHashMap<>();
+
+    @Data
+    public static class Diff {
+        private Long voucherId;
+        private long redisStock;
+        private long leasedStock;
+        private long buyers;
+        private long dbStock;
+        private long orders;
+        /**
+         * (redis库存 + 租约中的库存) - 数据库库存
+         */
+        private long stockDiff;
+        /**
+         * 已购买的人数 - 订单数
+         */
+        private long buyerDiff;
+        /**
+         * 连续多少次对账差异相同
+         */
+        private int stableTimes;
+        private LocalDateTime checkTime;
+    }
+
+    /**
+     * 最近一次对账仍然存在差异的秒杀券
+     */
+    public Collection<Diff> getDiffs(){
+        return diffs.values();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile(){
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        if (!config.isEnabled()){
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()){
+            return;
+        }
+        try {
+            reconcilePage(config);
+        } catch (Exception e) {
+            log.error("秒杀库存对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcilePage(SeckillProperties.Reconcile config){
+        // 1. 查询一页进行中(或刚结束)的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("voucher_id", cursor)
+                .gt("end_time", LocalDateTime.now().minus(config.getEndedGrace()))
+                .orderByAsc("voucher_id")
+                .last("limit " + config.getPageSize())
+                .list();
+        // 下一页的游标，不足一页说明已经到最后了，下次从头开始
+        cursor = vouchers.size() < config.getPageSize() ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+        if (vouchers.isEmpty()){
+            return;
+        }
+        List<Long> voucherIds = vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        // 2. 按优惠卷分组统计订单数
+        Map<Long, Long> orderCounts = countOrders(voucherIds);
+        // 3. 批量读取redis中的库存、租约和已购买的人数
+        Map<Long, long[]> redisStats = readRedis(voucherIds);
+        // 4. 还有订单在死信队列或本地订单日志中的秒杀券
+        Set<Long> unresolved = unresolvedVouchers();
+        if (unresolved == null){
+            log.warn("死信队列超过 {} 条，暂停库存对账", DLQ_SCAN_LIMIT);
+            return;
+        }
+        // 5. 比较
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            long[] stats = redisStats.get(voucherId);
+            if (stats == null || unresolved.contains(voucherId)){
+                // redis中没有库存，不是通过秒杀下单的优惠卷；或者还有订单没有处理完
+                diffs.remove(voucherId);
+                continue;
+            }
+            Diff diff = new Diff();
+            diff.setVoucherId(voucherId);
+            diff.setRedisStock(stats[0]);
+            diff.setLeasedStock(stats[1]);
+            diff.setBuyers(stats[2]);
+            diff.setDbStock(voucher.getStock());
+            diff.setOrders(orderCounts.getOrDefault(voucherId, 0L));
+            diff.setStockDiff(diff.getRedisStock() + diff.getLeasedStock() - diff.getDbStock());
+            diff.setBuyerDiff(diff.getBuyers() - diff.getOrders());
+            diff.setCheckTime(LocalDateTime.now());
+            if (diff.getStockDiff() == 0 && diff.getBuyerDiff() == 0){
+                diffs.remove(voucherId);
+                continue;
+            }
+            Diff last = diffs.get(voucherId);
+            boolean same = last != null && last.getStockDiff() == diff.getStockDiff() && last.getBuyerDiff() == diff.getBuyerDiff();
+            diff.setStableTimes(same ? last.getStableTimes() + 1 : 1);
+            diffs.put(voucherId, diff);
+            if (diff.getStableTimes() < config.getStableScans()){
+                continue;
+            }
+            log.warn("秒杀库存不一致：{}", diff);
+            if (config.isRepair() && diff.getStockDiff() != 0){
+                if (hasInFlightOrders(voucherId)){
+                    log.info("秒杀券 {} 还有订单在stream中没有处理完，暂不修复", voucherId);
+                    continue;
+                }
+                repair(diff);
+            }
+        }
+    }
+
+    /**
+     * 死信队列和本地订单日志中还有订单的秒杀券
+     * @return 死信队列太长无法扫描时返回null
+     */
+    private Set<Long> unresolvedVouchers(){
+        Set<Long> voucherIds = new HashSet<>();
+        Set<String> owners = stringRedisTemplate.opsForSet().members(RedisConstants.SECKILL_JOURNAL_OWNERS_KEY);
+        if (owners != null){
+            for (String owner : owners) {
+                Set<Object> pending = stringRedisTemplate.opsForHash().keys(RedisConstants.SECKILL_JOURNAL_PENDING_KEY + owner);
+                if (pending.isEmpty()){
+                    // 日志已经回放完，或者实例宕机后过期了
+                    stringRedisTemplate.opsForSet().remove(RedisConstants.SECKILL_JOURNAL_OWNERS_KEY, owner);
+                    continue;
+                }
+                pending.forEach(voucherId -> voucherIds.add(Long.valueOf(voucherId.toString())));
+            }
+        }
+        Long dlqSize = stringRedisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_DLQ_KEY);
+        if (dlqSize == null || dlqSize == 0){
+            return voucherIds;
+        }
+        if (dlqSize > DLQ_SCAN_LIMIT){
+            return null;
+        }
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(RedisConstants.SECKILL_ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count((int) DLQ_SCAN_LIMIT));
+        if (records != null){
+            for (MapRecord<String, Object, Object> record : records) {
+                Object voucherId = record.getValue().get("voucherId");
+                if (voucherId != null){
+                    voucherIds.add(Long.valueOf(voucherId.toString()));
+                }
+            }
+        }
+        return voucherIds;
+    }
+
+    /**
+     * 秒杀券的订单所在的stream分区中，是否还有没投递(lag)或者没确认(pending)的消息
+     * 按用户分区时同一张秒杀券的订单分散在所有分区中，要检查所有分区
+     */
+    private boolean hasInFlightOrders(Long voucherId){
+        SeckillProperties.OrderStream streamConfig = seckillProperties.getStream();
+        List<String> keys = new ArrayList<>();
+        if (streamConfig.getPartitionKey() == SeckillProperties.PartitionKey.VOUCHER){
+            keys.add(streamConfig.keyOf(voucherId, 0L));
+        } else {
+            for (int p = 0; p < Math.max(1, streamConfig.getPartitions()); p++) {
+                keys.add(streamConfig.keyOf(p));
+            }
+        }
+        String group = seckillProperties.getConsumer().getGroup();
+        for (String key : keys) {
+            Long length = stringRedisTemplate.opsForStream().size(key);
+            if (length == null || length == 0){
+                continue;
+            }
+            StreamInfo.XInfoGroup info = stringRedisTemplate.opsForStream().groups(key).stream()
+                    .filter(g -> group.equals(g.groupName()))
+                    .findFirst()
+                    .orElse(null);
+            if (info == null){
+                // 还没有创建消费者组，stream中的消息都没有投递
+                return true;
+            }
+            if (info.pendingCount() > 0){
+                return true;
+            }
+            // 最后投递的消息之后还有消息
+            List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(key,
+                    Range.rightUnbounded(Range.Bound.exclusive(info.lastDeliveredId())),
+                    RedisZSetCommands.Limit.limit().count(1));
+            if (undelivered != null && !undelivered.isEmpty()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<Long, Long> countOrders(List<Long> voucherIds){
+        // select voucher_id, count(*) from tb_voucher_order where voucher_id in (...) and status != 4 group by voucher_id
+        QueryWrapper<VoucherOrder> wrapper = new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt")
+                .in("voucher_id", voucherIds);
+        // 幂等下单模式下取消订单不会清除用户的购买记录，所以已取消的订单也要算上
+        if (seckillProperties.getConsumer().getPersistMode() != SeckillProperties.PersistMode.IDEMPOTENT){
+            wrapper.ne("status", SystemConstants.ORDER_STATUS_CANCELLED);
+        }
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(wrapper.groupBy("voucher_id"));
+        Map<Long, Long> counts = new HashMap<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            counts.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("cnt")).longValue());
+        }
+        return counts;
+    }
+
+    /**
+     * 通过一次pipeline批量读取库存、租约和已购买的人数
+     * @return key：优惠卷id，value：[redis库存, 租约中的库存, 已购买的人数]，redis中没有库存的不返回
+     */
+    private Map<Long, long[]> readRedis(List<Long> voucherIds){
+        byte[] buyersScript = bytes(BUYERS_SCRIPT.getScriptAsString());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long voucherId : voucherIds) {
+                connection.stringCommands().get(bytes(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+                connection.hashCommands().hVals(bytes(RedisConstants.SECKILL_LEASE_KEY + voucherId));
+                // 购买人数，兼容set、bitmap、每人多单等记录方式
+                connection.scriptingCommands().eval(buyersScript, ReturnType.INTEGER, 0, bytes(voucherId.toString()));
+            }
+            return null;
+        });
+        Map<Long, long[]> stats = new HashMap<>(voucherIds.size());
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Object stock = results.get(i * 3);
+            if (stock == null){
+                continue;
+            }
+            long redisStock = Long.parseLong(stock.toString());
+            long leased = sum((List<?>) results.get(i * 3 + 1));
+            long buyers = ((Number) results.get(i * 3 + 2)).longValue();
+            stats.put(voucherIds.get(i), new long[]{redisStock, leased, buyers});
+        }
+        return stats;
+    }
+
+    /**
+     * 以数据库为准修复redis库存：redis库存 + 租约中的库存 = 数据库库存
+     * 已购买的人数只报告不修复(无法判断是哪个用户的订单丢失了，这些用户的订单状态是FAILED)
+     */
+    private void repair(Diff diff){
+        Long voucherId = diff.getVoucherId();
+        Long adjusted = stringRedisTemplate.execute(ADJUST_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), String.valueOf(-diff.getStockDiff()));
+        log.warn("已修复秒杀券 {} 的redis库存，调整数量: {}", voucherId, adjusted);
+        diffs.remove(voucherId);
+        if (adjusted != null && adjusted > 0){
+            // 库存增加了，清除各个实例的售罄标记
+            seckillSoldOutHolder.markAvailable(voucherId);
+        }
+    }
+
+    private static long sum(List<?> values){
+        long sum = 0;
+        if (values == null){
+            return sum;
+        }
+        for (Object value : values) {
+            if (value != null && StrUtil.isNotBlank(value.toString())){
+                sum += Long.parseLong(value.toString());
+            }
+        }
+        return sum;
+    }
+
+    private static byte[] bytes(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,245 @@
+package com.jxdp.task;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.jxdp.entity.SeckillVoucher;
+import com.jxdp.entity.Voucher;
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.mapper.VoucherMapper;
+import com.jxdp.mapper.VoucherOrderMapper;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.ISeckillVoucherService;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀预热
+ * 秒杀券的库存和元数据原来只在新增秒杀券时写入redis一次，redis被清空或者秒杀券是其他系统创建的，
+ * lua脚本就拿不到库存。预热任务定时检查 即将开始(beginTime之前lead时间内)和进行中的秒杀券：
+ * 1. 写入元数据，redis中没有库存时从数据库初始化库存，并根据已有的订单重建用户的购买记录
+ * 2. 预先加载秒杀相关的lua脚本(SCRIPT LOAD)，第一次执行时不需要再发送整个脚本
+ * 3. 预先创建订单stream和消费者组
+ * 4. 秒杀券第一次进入预热时间时，并发访问一次数据库和redis，让连接池提前建立好连接
+ * 多个实例通过分布式锁保证同一时间只有一个实例在预热
+ */
+@Slf4j
+@Component
+public class SeckillWarmer {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    ISeckillVoucherService seckillVoucherService;
+    @Resource
+    VoucherMapper voucherMapper;
+    @Resource
+    VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    VoucherOrderConsumer voucherOrderConsumer;
+    @Resource
+    RedissonClient redissonClient;
+
+    private static final String LOCK_KEY = "lock:seckill:warmup";
+    /**
+     * 秒杀热点路径上的lua脚本
+     */
+    private static final String[] HOT_SCRIPTS = {"seckill.lua", "seckill_lease.lua", "seckill_queue.lua", "rate_limit.lua"};
+    /**
+     * 重建购买记录时每次pipeline写入的数量
+     */
+    private static final int BUYER_BATCH_SIZE = 1000;
+
+    private static final DefaultRedisScript<Long> WARMUP_SCRIPT;
+    static {
+        WARMUP_SCRIPT = new DefaultRedisScript<>();
+        WARMUP_SCRIPT.setLocation(new ClassPathResource("seckill_warmup.lua"));
+        WARMUP_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 本实例已经预热过连接池的秒杀券
+     */
+    private final Set<Long> warmedVouchers = ConcurrentHashMap.newKeySet();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.warm-up.interval:30000}")
+    public void warmUp(){
+        SeckillProperties.WarmUp config = seckillProperties.getWarmUp();
+        if (!config.isEnabled()){
+            return;
+        }
+        // 即将开始和进行中的秒杀券
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plus(config.getLead()))
+                .gt("end_time", now)
+                .list();
+        if (vouchers.isEmpty()){
+            return;
+        }
+        // 连接池是每个实例自己的，每个实例都要预热
+        if (warmedVouchers.addAll(vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()))){
+            prefillPools(config.getPrefillConnections(), vouchers.get(0).getVoucherId());
+        }
+        warmedVouchers.retainAll(vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toSet()));
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()){
+            return;
+        }
+        try {
+            loadScripts();
+            voucherOrderConsumer.createGroups();
+            Map<Long, Voucher> voucherMap = voucherMapper.selectBatchIds(
+                    vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()))
+                    .stream().collect(Collectors.toMap(Voucher::getId, Function.identity()));
+            for (SeckillVoucher seckillVoucher : vouchers) {
+                Voucher voucher = voucherMap.get(seckillVoucher.getVoucherId());
+                preload(seckillVoucher, voucher == null ? null : voucher.getStatus());
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入秒杀券的元数据和库存(库存已经存在时不覆盖)
+     * 限购数量(为空表示1)和一人一单的记录方式(为空时使用默认配置)取自tb_seckill_voucher，redis中已经存在时不覆盖
+     * @param status 优惠卷状态，为空表示上架
+     */
+    public void preload(SeckillVoucher seckillVoucher, Integer status){
+        Long voucherId = seckillVoucher.getVoucherId();
+        Integer userLimit = seckillVoucher.getUserLimit();
+        Integer buyerDedupe = seckillVoucher.getBuyerDedupe();
+        int limit = userLimit == null ? 1 : userLimit;
+        Long initialized = stringRedisTemplate.execute(WARMUP_SCRIPT, Collections.emptyList(),
+                voucherId.toString(),
+                seckillVoucher.getStock().toString(),
+                String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())),
+                String.valueOf(toEpochMilli(seckillVoucher.getEndTime())),
+                String.valueOf(status == null ? 1 : status),
+                String.valueOf(limit),
+                String.valueOf(buyerDedupe != null ? buyerDedupe : seckillProperties.getBuyerDedupe()));
+        if (initialized != null && initialized == 1){
+            log.info("秒杀券 {} 的库存已初始化: {}", voucherId, seckillVoucher.getStock());
+            rebuildBuyers(voucherId);
+        }
+    }
+
+    /**
+     * redis中的库存是重新初始化的，说明购买记录也丢了，根据数据库中的订单重建，避免用户重复下单
+     */
+    private void rebuildBuyers(Long voucherId){
+        // select user_id, count(*) from tb_voucher_order where voucher_id = ? and status != 4 group by user_id
+        QueryWrapper<VoucherOrder> wrapper = new QueryWrapper<VoucherOrder>()
+                .select("user_id", "count(*) AS cnt")
+                .eq("voucher_id", voucherId);
+        // 幂等下单模式下取消订单不会清除用户的购买记录
+        if (seckillProperties.getConsumer().getPersistMode() != SeckillProperties.PersistMode.IDEMPOTENT){
+            wrapper.ne("status", SystemConstants.ORDER_STATUS_CANCELLED);
+        }
+        List<Map<String, Object>> rows = voucherOrderMapper.selectMaps(wrapper.groupBy("user_id"));
+        if (rows.isEmpty()){
+            return;
+        }
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(
+                RedisConstants.SECKILL_META_KEY + voucherId, Arrays.asList("limit", "dedupe"));
+        boolean multiple = meta.get(0) != null && Integer.parseInt(meta.get(0).toString()) > 1;
+        int dedupe = meta.get(1) == null ? SystemConstants.BUYER_DEDUPE_SET : Integer.parseInt(meta.get(1).toString());
+        byte[] orderKey = bytes(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        byte[] countKey = bytes(RedisConstants.SECKILL_ORDER_COUNT_KEY + voucherId);
+        String bitsKey = RedisConstants.SECKILL_ORDER_BITS_KEY + voucherId;
+        for (int from = 0; from < rows.size(); from += BUYER_BATCH_SIZE) {
+            List<Map<String, Object>> batch = rows.subList(from, Math.min(rows.size(), from + BUYER_BATCH_SIZE));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map<String, Object> row : batch) {
+                    byte[] userId = bytes(row.get("user_id").toString());
+                    long uid = ((Number) row.get("user_id")).longValue();
+                    if (multiple){
+                        connection.hashCommands().hSet(countKey, userId, bytes(row.get("cnt").toString()));
+                    } else if (dedupe == SystemConstants.BUYER_DEDUPE_BITMAP){
+                        connection.stringCommands().setBit(bytes(bitsKey), uid, true);
+                    } else if (dedupe == SystemConstants.BUYER_DEDUPE_SHARDED_BITMAP){
+                        long shard = uid / SystemConstants.BUYER_BITMAP_SHARD_SIZE;
+                        connection.stringCommands().setBit(bytes(bitsKey + ":" + shard),
+                                uid % SystemConstants.BUYER_BITMAP_SHARD_SIZE, true);
+                        connection.setCommands().sAdd(bytes(bitsKey + ":shards"), bytes(String.valueOf(shard)));
+                    } else {
+                        connection.setCommands().sAdd(orderKey, userId);
+                    }
+                }
+                return null;
+            });
+        }
+        log.info("秒杀券 {} 的购买记录已重建: {} 个用户", voucherId, rows.size());
+    }
+
+    /**
+     * SCRIPT LOAD，DefaultRedisScript执行时先用EVALSHA，脚本已经加载过就不需要再发送脚本内容
+     */
+    private void loadScripts(){
+        List<byte[]> scripts = new ArrayList<>(HOT_SCRIPTS.length);
+        for (String location : HOT_SCRIPTS) {
+            DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+            script.setLocation(new ClassPathResource(location));
+            scripts.add(bytes(script.getScriptAsString()));
+        }
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (byte[] script : scripts) {
+                connection.scriptingCommands().scriptLoad(script);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 并发访问数据库和redis，让连接池提前建立好连接，秒杀开始时不需要再建立连接
+     */
+    private void prefillPools(int connections, Long voucherId){
+        List<CompletableFuture<Void>> futures = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                seckillVoucherService.getById(voucherId);
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.ping());
+                redissonClient.getBucket(RedisConstants.SECKILL_STOCK_KEY + voucherId).isExists();
+            }));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (Exception e) {
+            log.warn("预热连接池失败", e);
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] bytes(String value){
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,583 @@
+package com.jxdp.task;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.IVoucherOrderService;
+import com.jxdp.utils.OrderJournal;
+import com.jxdp.utils.RedisConstants;
+import com.jxdp.utils.SeckillDbBreaker;
+import com.jxdp.utils.SeckillMetrics;
+import com.jxdp.utils.SeckillOrderStatusRecorder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单消费者：从stream.orders(或者分区后的stream.orders:n)中读取下单信息，异步写入数据库
+ * 1. 启动时自动创建消费者组(XGROUP CREATE ... MKSTREAM)
+ * 2. 每个分区(stream)都有自己的消费者组，每个实例为每个分区启动workers个线程，
+ *    每个线程都是消费者组中一个独立的消费者，名字为 实例id-线程序号，
+ *    实例id默认是 主机名:端口，重启后名字不变，能够继续处理自己pending-list中的消息
+ * 3. 异常消息按空闲时间从pending-list中恢复，多次失败的消息转入死信队列stream.orders.dlq
+ * 4. 由spring管理生命周期(SmartLifecycle)：关闭时(spring boot在关闭开始时已经把readiness改为REFUSING_TRAFFIC)停止读取新消息，
+ *    正在处理的一批消息在drainTimeout内处理完并ACK，之后注销pending-list为空的消费者
+ * 5. 作为健康检查(HealthIndicator)暴露消费者的运行状态，关闭过程中为OUT_OF_SERVICE
+ * 6. 开启本地订单日志时，数据库熔断期间订单写入本地日志后直接ACK，由OrderJournalReplayer在数据库恢复后回放
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumer implements SmartLifecycle, HealthIndicator {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    IVoucherOrderService voucherOrderService;
+    @Resource
+    RedissonClient redissonClient;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    SeckillOrderStatusRecorder seckillOrderStatusRecorder;
+    @Resource
+    SeckillMetrics seckillMetrics;
+    @Resource
+    SeckillOrderCanceller seckillOrderCanceller;
+    @Resource
+    OrderJournal orderJournal;
+    @Resource
+    SeckillDbBreaker seckillDbBreaker;
+
+    private ExecutorService executor;
+    private final List<VoucherOrderHandler> handlers = new ArrayList<>();
+    private volatile boolean running = false;
+    /**
+     * 还没有退出的消费线程数量
+     */
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    /**
+     * 每次XPENDING扫描的消息数量
+     */
+    private static final long PENDING_SCAN_COUNT = 100;
+    /**
+     * 死信消息中额外记录的字段：来源stream、原消息id、投递次数
+     */
+    public static final String DLQ_SOURCE_STREAM = "sourceStream";
+    public static final String DLQ_SOURCE_ID = "sourceId";
+    public static final String DLQ_DELIVERY_COUNT = "deliveryCount";
+
+    @Override
+    public void start(){
+        SeckillProperties.StreamConsumer config = seckillProperties.getConsumer();
+        SeckillProperties.OrderStream streamConfig = seckillProperties.getStream();
+        String instanceId = seckillProperties.getInstanceId();
+        int partitions = Math.max(1, streamConfig.getPartitions());
+        int workers = Math.max(1, config.getWorkers());
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(partitions * workers,
+                r -> new Thread(r, "seckill-order-" + threadIndex.getAndIncrement()));
+        running = true;
+        handlers.clear();
+        // 每个分区一个stream，每个stream都有自己的消费者组和消费者
+        createGroups();
+        for (int p = 0; p < partitions; p++) {
+            String streamKey = streamConfig.keyOf(p);
+            for (int i = 0; i < workers; i++) {
+                VoucherOrderHandler handler = new VoucherOrderHandler(streamKey, instanceId + "-" + i);
+                handlers.add(handler);
+                activeWorkers.incrementAndGet();
+                executor.submit(handler);
+            }
+        }
+        log.info("秒杀订单消费者启动，消费者组: {}, 分区数: {}, 每个分区的消费者数: {}",
+                config.getGroup(), partitions, workers);
+    }
+
+    @Override
+    public void stop(){
+        stop(() -> { });
+    }
+
+    /**
+     * 优雅关闭：不再读取新消息，等待正在处理的消息处理完并ACK，超过drainTimeout后中断消费线程
+     * 在单独的线程中等待，不阻塞同一阶段其他组件的关闭
+     */
+    @Override
+    public void stop(Runnable callback){
+        running = false;
+        if (executor == null){
+            // start()没有执行过(例如启动过程中失败)
+            callback.run();
+            return;
+        }
+        executor.shutdown();
+        Thread drainThread = new Thread(() -> {
+            try {
+                long drainMillis = seckillProperties.getConsumer().getDrainTimeout().toMillis();
+                if (!executor.awaitTermination(drainMillis, TimeUnit.MILLISECONDS)){
+                    log.warn("秒杀订单消费者在 {} ms内没有处理完，剩余的消息留在pending-list中", drainMillis);
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            } finally {
+                handlers.stream().map(handler -> handler.queenName).distinct().forEach(this::deregisterConsumers);
+                log.info("秒杀订单消费者已停止");
+                callback.run();
+            }
+        }, "seckill-order-drain");
+        drainThread.start();
+    }
+
+    @Override
+    public boolean isRunning(){
+        return running;
+    }
+
+    /**
+     * 在web服务器停止接收请求之后再停止，关闭阶段中已经写入stream的订单尽量由本实例处理完
+     */
+    @Override
+    public int getPhase(){
+        return Integer.MAX_VALUE - 2;
+    }
+
+    @Override
+    public Health health(){
+        Health.Builder builder = running ? Health.up() : Health.outOfService();
+        return builder
+                .withDetail("workers", handlers.size())
+                .withDetail("activeWorkers", activeWorkers.get())
+                .build();
+    }
+
+    /**
+     * 为每个分区创建消费者组，启动时和秒杀预热时调用
+     */
+    void createGroups(){
+        SeckillProperties.OrderStream streamConfig = seckillProperties.getStream();
+        for (int p = 0; p < Math.max(1, streamConfig.getPartitions()); p++) {
+            createGroupIfAbsent(streamConfig.keyOf(p), seckillProperties.getConsumer().getGroup());
+        }
+    }
+
+    /**
+     * 创建消费者组，stream不存在时一并创建(MKSTREAM)，组已经存在则忽略
+     */
+    private void createGroupIfAbsent(String key, String group){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(key.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")){
+                throw e;
+            }
+            log.debug("消费者组已经存在: {} {}", key, group);
+        }
+    }
+
+    /**
+     * 注销本实例的消费者
+     * 注意：XGROUP DELCONSUMER会把该消费者pending-list中的消息一起删除，所以只注销pending-list为空的消费者
+     */
+    private void deregisterConsumers(String key){
+        String group = seckillProperties.getConsumer().getGroup();
+        try {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(key, group);
+            Map<String, Long> pendingPerConsumer = summary == null ? null : summary.getPendingMessagesPerConsumer();
+            for (VoucherOrderHandler handler : handlers) {
+                if (!handler.queenName.equals(key)){
+                    continue;
+                }
+                String consumerName = handler.consumer.getName();
+                Long pending = pendingPerConsumer == null ? null : pendingPerConsumer.get(consumerName);
+                if (pending != null && pending > 0){
+                    log.warn("消费者 {} 在 {} 中还有 {} 条未确认的消息，暂不注销", consumerName, key, pending);
+                    continue;
+                }
+                stringRedisTemplate.opsForStream().deleteConsumer(key, handler.consumer);
+            }
+        } catch (Exception e) {
+            log.error("注销消费者失败: {}", key, e);
+        }
+    }
+
+    // 线程任务，用于线程池处理的任务(从消息队列中去消息进行下单)
+    private class VoucherOrderHandler implements Runnable{
+        private final Consumer consumer;
+        private final String queenName;
+
+        VoucherOrderHandler(String queenName, String consumerName) {
+            this.queenName = queenName;
+            this.consumer = Consumer.from(seckillProperties.getConsumer().getGroup(), consumerName);
+        }
+
+        // 从消息队列中取下单信息进行下单
+        @Override
+        public void run() {
+            try {
+                consume();
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        }
+
+        private void consume() {
+            SeckillProperties.StreamConsumer config = seckillProperties.getConsumer();
+            // 先处理上一次运行遗留在自己pending-list中的消息
+            recoverPending(true, Duration.ZERO);
+            long nextRecoverTime = System.currentTimeMillis() + config.getRecoverInterval().toMillis();
+            // 连续失败的次数，用来计算重试前的退避时间
+            int failures = 0;
+            while (running){
+                List<MapRecord<String, Object, Object>> list = null;
+                try {
+                    // 1. 获取消息队列中订单信息
+                    //  XREADGROUP GROUP g1 c1 COUNT batchSize BLOCK 2000 STREAMS s1 >
+                    // 其中String是这条消息的id
+                    // Object, Object 订单信息，以键值对的形式存储
+                    list = read(config);
+                    // 判断消息获取是否成功，如果获取失败，说明没有消息，继续下一次循环
+                    if (list != null && !list.isEmpty()){
+                        if (config.getBatchSize() > 1){
+                            handleVoucherOrderBatch(list);
+                        } else {
+                            handleRecord(list.get(0));
+                        }
+                    }
+                    failures = 0;
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    if (list != null && !list.isEmpty() && isInfrastructureFailure(e)){
+                        // 数据库(或redis)故障不是消息本身的问题，这次投递不计入投递次数
+                        uncountDelivery(list.stream().map(MapRecord::getId).toArray(RecordId[]::new), 0);
+                    }
+                    // 失败的消息都还在自己的pending-list中(批量下单时事务已经回滚)，退避一段时间后逐条重试一次，
+                    // 只重试空闲超过退避时间的消息，避免数据库故障期间不停地重试
+                    Duration backoff = backoff(config, ++failures);
+                    if (!sleep(backoff)){
+                        return;
+                    }
+                    recoverPending(true, backoff);
+                }
+                // 定期认领其他消费者(包括已经下线的消费者)长时间没有确认的消息
+                if (System.currentTimeMillis() >= nextRecoverTime){
+                    recoverPending(false, config.getPendingMinIdle());
+                    nextRecoverTime = System.currentTimeMillis() + config.getRecoverInterval().toMillis();
+                }
+            }
+        }
+
+        /**
+         * XREADGROUP GROUP g1 c1 COUNT batchSize BLOCK maxWait STREAMS s1 >
+         */
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> read(SeckillProperties.StreamConsumer config) {
+            // read的参数是泛型可变参数，只读取一个stream，不会有堆污染
+            return stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(Math.max(1, config.getBatchSize())).block(config.getMaxWait()),
+                    StreamOffset.create(queenName, ReadOffset.lastConsumed())
+            );
+        }
+
+        /**
+         * 批量下单：一次XREADGROUP读取多条订单，同一个优惠卷的库存合并成一条update，
+         * 订单通过JDBC批量插入，全部在一个事务中完成，最后通过一次XACK确认所有消息
+         */
+        private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> list) {
+            // 解析数据
+            List<VoucherOrder> voucherOrders = list.stream()
+                    .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                    .collect(Collectors.toList());
+            RecordId[] recordIds = list.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            // 数据库熔断期间写入本地日志
+            if (journalIfDbUnavailable(voucherOrders)){
+                stringRedisTemplate.opsForStream().acknowledge(queenName, consumer.getGroup(), recordIds);
+                return;
+            }
+            // 批量下单
+            List<Long> failedIds = Collections.emptyList();
+            long start = System.nanoTime();
+            try {
+                if (seckillProperties.getConsumer().getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT){
+                    failedIds = voucherOrderService.createVoucherOrderIdempotent(voucherOrders);
+                } else {
+                    voucherOrderService.createVoucherOrderBatch(voucherOrders);
+                }
+                seckillDbBreaker.recordSuccess(System.nanoTime() - start);
+            } catch (DataAccessException | TransactionException e) {
+                seckillDbBreaker.recordFailure();
+                throw e;
+            }
+            // 记录订单状态
+            List<Long> createdIds = new ArrayList<>(voucherOrders.size());
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                if (!failedIds.contains(voucherOrder.getId())){
+                    createdIds.add(voucherOrder.getId());
+                }
+            }
+            seckillOrderStatusRecorder.markCreated(createdIds);
+            seckillOrderStatusRecorder.markFailed(failedIds);
+            // 重复订单在redis中扣减的库存要还回去
+            releaseDuplicates(voucherOrders, failedIds);
+            // 超时未支付自动取消
+            seckillOrderCanceller.schedule(createdIds);
+            seckillMetrics.countCreated(createdIds.size());
+            seckillMetrics.countFailed(failedIds.size());
+            // 一次ACK确认这一批消息
+            stringRedisTemplate.opsForStream().acknowledge(queenName, consumer.getGroup(), recordIds);
+        }
+
+        private void handleRecord(MapRecord<String, ?, ?> record) {
+            // 将value转化成voucherOrder类
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            // 数据库熔断期间写入本地日志
+            if (journalIfDbUnavailable(Collections.singletonList(voucherOrder))){
+                stringRedisTemplate.opsForStream().acknowledge(queenName, consumer.getGroup(), record.getId());
+                return;
+            }
+            // 下单
+            boolean created;
+            List<Long> duplicateIds = Collections.emptyList();
+            long start = System.nanoTime();
+            try {
+                if (seckillProperties.getConsumer().getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT){
+                    // 依赖唯一索引保证幂等，不需要加锁
+                    duplicateIds = voucherOrderService.createVoucherOrderIdempotent(Collections.singletonList(voucherOrder));
+                    created = duplicateIds.isEmpty();
+                } else {
+                    created = handleVoucherOrder(voucherOrder);
+                }
+                seckillDbBreaker.recordSuccess(System.nanoTime() - start);
+            } catch (DataAccessException | TransactionException e) {
+                seckillDbBreaker.recordFailure();
+                throw e;
+            }
+            // 记录订单状态
+            List<Long> orderIds = Collections.singletonList(voucherOrder.getId());
+            if (created){
+                seckillOrderStatusRecorder.markCreated(orderIds);
+                seckillMetrics.countCreated(1);
+                seckillOrderCanceller.schedule(orderIds);
+            } else {
+                seckillOrderStatusRecorder.markFailed(orderIds);
+                seckillMetrics.countFailed(1);
+                releaseDuplicates(Collections.singletonList(voucherOrder), duplicateIds);
+            }
+            // ACK确认
+            stringRedisTemplate.opsForStream().acknowledge(queenName, consumer.getGroup(), record.getId());
+        }
+
+        /**
+         * 处理pending-list中的消息(处理异常的订单信息)
+         * 1. 通过XPENDING找出空闲时间超过minIdle的消息，再通过XCLAIM认领到自己名下，
+         *    XCLAIM同样带上minIdle，多个消费者同时恢复时只有一个能认领成功
+         * 2. 每条消息只重试一次，失败了就跳过处理下一条，不会因为一条异常消息卡住整个消费线程
+         * 3. 投递次数达到maxDeliveries的消息转移到死信队列stream.orders.dlq中，
+         *    数据库故障(包括熔断器打开)导致的失败不计入投递次数，数据库长时间不可用时订单不会被转入死信队列
+         * @param ownOnly true表示只处理自己pending-list中的消息，false表示处理整个消费者组的消息
+         * @param minIdle 只处理空闲超过这个时间的消息
+         */
+        private void recoverPending(boolean ownOnly, Duration minIdle) {
+            SeckillProperties.StreamConsumer config = seckillProperties.getConsumer();
+            try {
+                // XPENDING s1 g1 - + count [c1]
+                PendingMessages pendingMessages = ownOnly
+                        ? stringRedisTemplate.opsForStream().pending(queenName, consumer, Range.unbounded(), PENDING_SCAN_COUNT)
+                        : stringRedisTemplate.opsForStream().pending(queenName, consumer.getGroup(), Range.unbounded(), PENDING_SCAN_COUNT);
+                for (PendingMessage message : pendingMessages) {
+                    if (!running){
+                        return;
+                    }
+                    if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0){
+                        continue;
+                    }
+                    MapRecord<String, String, String> record = claim(message.getId(), minIdle);
+                    if (record == null){
+                        // 已经被其他消费者认领了
+                        continue;
+                    }
+                    if (message.getTotalDeliveryCount() >= config.getMaxDeliveries()){
+                        moveToDeadLetter(record, message.getTotalDeliveryCount());
+                        continue;
+                    }
+                    try {
+                        handleRecord(record);
+                    } catch (Exception e) {
+                        log.error("处理pending-list订单异常，消息id: {}，已投递 {} 次",
+                                record.getId(), message.getTotalDeliveryCount() + 1, e);
+                        if (isInfrastructureFailure(e)){
+                            uncountDelivery(new RecordId[]{record.getId()}, message.getTotalDeliveryCount());
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                log.error("处理pending-list异常: {}", queenName, e);
+            }
+        }
+
+        /**
+         * XCLAIM s1 g1 c1 minIdle id，认领成功时返回消息内容，同时消息的投递次数加1
+         */
+        private MapRecord<String, String, String> claim(RecordId id, Duration minIdle) {
+            List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(queenName.getBytes(StandardCharsets.UTF_8), consumer.getGroup(),
+                            consumer.getName(), RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+            if (records == null || records.isEmpty()){
+                return null;
+            }
+            return records.get(0).deserialize(stringRedisTemplate.getStringSerializer());
+        }
+
+        /**
+         * 撤销这次投递：XCLAIM s1 g1 c1 0 id... RETRYCOUNT count JUSTID，把投递次数改回投递之前的值
+         */
+        private void uncountDelivery(RecordId[] ids, long deliveryCount) {
+            try {
+                stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(queenName.getBytes(StandardCharsets.UTF_8), consumer.getGroup(),
+                                consumer.getName(), RedisStreamCommands.XClaimOptions.minIdle(Duration.ZERO).ids(ids).retryCount(deliveryCount)));
+            } catch (Exception e) {
+                log.warn("重置消息的投递次数失败: {}", queenName, e);
+            }
+        }
+
+        /**
+         * 将消息转移到死信队列，并在原来的stream中确认掉，避免一条异常消息被一直重试
+         * 订单状态保持QUEUED(过期后查询为UNKNOWN)，死信消息还可能被重新投递，只有丢弃时才标记为FAILED
+         */
+        private void moveToDeadLetter(MapRecord<String, String, String> record, long deliveryCount) {
+            Map<String, String> value = new HashMap<>(record.getValue());
+            value.put(DLQ_SOURCE_STREAM, queenName);
+            value.put(DLQ_SOURCE_ID, record.getId().getValue());
+            value.put(DLQ_DELIVERY_COUNT, String.valueOf(deliveryCount));
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ_KEY, value);
+            stringRedisTemplate.opsForStream().acknowledge(queenName, consumer.getGroup(), record.getId());
+            seckillMetrics.countDeadLetter();
+            log.error("订单消息投递 {} 次仍然失败，已转入死信队列: {}", deliveryCount, value);
+        }
+    }
+
+    /**
+     * 是否是数据库故障导致的失败：数据库访问异常(唯一索引冲突等数据问题除外)、事务异常，或者熔断器处于打开状态
+     */
+    private boolean isInfrastructureFailure(Exception e) {
+        if (!seckillDbBreaker.isClosed()){
+            return true;
+        }
+        if (e instanceof DataIntegrityViolationException){
+            return false;
+        }
+        return e instanceof DataAccessException || e instanceof TransactionException;
+    }
+
+    /**
+     * 连续失败时的退避时间：retryBackoff * 2^(failures - 1)，最长maxRetryBackoff
+     */
+    private static Duration backoff(SeckillProperties.StreamConsumer config, int failures) {
+        long millis = config.getRetryBackoff().toMillis() << Math.min(failures - 1, 16);
+        return Duration.ofMillis(Math.min(millis, config.getMaxRetryBackoff().toMillis()));
+    }
+
+    /**
+     * @return 是否正常睡眠结束，被中断时返回false
+     */
+    private static boolean sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 幂等下单时被唯一索引忽略的订单(同一个用户的重复下单)在redis中也扣减了库存，归还给其他用户
+     */
+    private void releaseDuplicates(List<VoucherOrder> voucherOrders, List<Long> duplicateIds) {
+        if (duplicateIds.isEmpty()){
+            return;
+        }
+        seckillOrderCanceller.releaseDuplicates(voucherOrders.stream()
+                .filter(voucherOrder -> duplicateIds.contains(voucherOrder.getId()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 开启了本地订单日志并且数据库熔断时，把订单写入本地日志(一批订单只fsync一次)，订单状态保持QUEUED，
+     * 写入成功后调用方直接ACK
+     * @return 是否已经写入本地日志
+     */
+    private boolean journalIfDbUnavailable(List<VoucherOrder> voucherOrders) {
+        if (!orderJournal.isEnabled() || seckillDbBreaker.allowRequest()){
+            return false;
+        }
+        long start = System.nanoTime();
+        orderJournal.append(voucherOrders);
+        seckillMetrics.recordStage("journal", start);
+        seckillMetrics.countJournaled(voucherOrders.size());
+        return true;
+    }
+
+    /**
+     * 异步下单的创建订单函数(其实就是下单过程，将消息队列中的下单信息存放到数据库中)
+     * @param voucherOrder
+     * @return 订单是否创建成功
+     */
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 获取用户
+        // 注意：这里就不能从LocalThread里面获取用户id了，因为已经不是同一个线程了
+        Long userId = voucherOrder.getUserId();
+        // 创建锁对象(就是根据用户id和优惠卷id创建锁对象防止同一个用户下多单(防止一人多单的问题))
+        // 注意：这里不加锁也没事，因为我们前面已经通过lua的原子性操作解决了一人一单的问题
+        RLock redisLock = redissonClient.getLock(RedisConstants.LOCK_ORDER_KEY + userId + ":" + voucherOrder.getVoucherId());
+        // 尝试获取锁
+        long start = System.nanoTime();
+        boolean isLock = redisLock.tryLock();
+        seckillMetrics.recordStage("lock", start);
+        // 4.判断是否获得锁成功
+        if (!isLock){
+            // 获取锁失败，说明其他消费线程正在处理同一个用户的同一张优惠卷
+            // 多个消费线程时不能直接丢弃，抛出异常让消息留在pending-list中稍后重试
+            throw new IllegalStateException("获取下单锁失败，稍后重试，userId: " + userId);
+        }
+        try {
+            // 通过代理对象调用下单操作(就是将下单信息存放到数据库中)
+            // 这里注入的voucherOrderService就是代理对象，事务能够生效
+            return voucherOrderService.createVoucherOrder2(voucherOrder);
+        }finally {
+            // 释放锁
+            redisLock.unlock();
+        }
+    }
+}
@@ -7,11 +7,18 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jxdp.properties.LocalCacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,13 +27,80 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
+/**
+ * 缓存工具类
+ * 开启本地缓存(hmdp.local-cache.enabled)后，可以通过queryWithLocal在redis前面加一层进程内的缓存(caffeine)，
+ * 热点数据直接从堆中返回，不需要访问redis，也不需要把hash转换成对象；
+ * 通过delete删除缓存时会通过redis的发布订阅通知所有实例删除本地缓存，消息丢失时本地缓存最多保留ttl时间
+ */
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    LocalCacheProperties localCacheProperties;
 
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 本地缓存中表示"数据不存在"的值(caffeine不能保存null)
+     */
+    private static final Object NULL_VALUE = new Object();
+    /**
+     * 本地缓存，key和redis中的key相同，没有开启时为null
+     */
+    private Cache<String, Object> localCache;
+
+    @PostConstruct
+    public void init(){
+        if (localCacheProperties.isEnabled()){
+            localCache = Caffeine.newBuilder()
+                    .maximumSize(localCacheProperties.getMaximumSize())
+                    .expireAfterWrite(localCacheProperties.getTtl())
+                    .build();
+        }
+    }
+
+    /**
+     * 先查询本地缓存，没有命中再通过remoteQuery查询(redis或者数据库)，结果(包括不存在)写入本地缓存
+     * 例如：queryWithLocal(CACHE_SHOP_KEY, id, Shop.class, shopId -> queryWithMapWithMutex(CACHE_SHOP_KEY, shopId, ...))
+     * 注意：返回的是本地缓存中共享的对象，调用方不要修改
+     * @param remoteQuery 本地缓存没有命中时的查询
+     */
+    public <R, ID> R queryWithLocal(String keyPrefix, ID id, Class<R> type, Function<ID, R> remoteQuery){
+        if (localCache == null){
+            return remoteQuery.apply(id);
+        }
+        String key = keyPrefix + id;
+        Object value = localCache.getIfPresent(key);
+        if (value == null){
+            R r = remoteQuery.apply(id);
+            localCache.put(key, r == null ? NULL_VALUE : r);
+            return r;
+        }
+        return value == NULL_VALUE ? null : type.cast(value);
+    }
+
+    /**
+     * 删除缓存：删除redis中的缓存，并通知所有实例(包括自己)删除本地缓存
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        if (localCache != null){
+            localCache.invalidate(key);
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    /**
+     * 接收其他实例发布的本地缓存失效消息
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern){
+        if (localCache != null){
+            localCache.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+        }
+    }
 
     /**
      * 基于string类型的攻击类(解决缓存穿透和缓存击穿问题)
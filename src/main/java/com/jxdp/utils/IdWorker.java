@@ -0,0 +1,14 @@
+package com.jxdp.utils;
+
+/**
+ * 全局id生成器
+ * 通过hmdp.id-worker.strategy选择实现：redis(默认，RedisIdWorker)或者snowflake(SnowflakeIdWorker)
+ */
+public interface IdWorker {
+
+    /**
+     * 生成一个全局唯一的id
+     * @param keyPrefix 业务前缀
+     */
+    long nextId(String keyPrefix);
+}
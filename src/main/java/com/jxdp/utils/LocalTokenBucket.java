@@ -0,0 +1,46 @@
+package com.jxdp.utils;
+
+/**
+ * 本地令牌桶
+ * 按照固定速率生成令牌，桶满了就不再生成，每个请求消耗一个令牌，没有令牌时拒绝请求
+ * 令牌在获取时按照时间差惰性补充，不需要定时任务
+ */
+public class LocalTokenBucket {
+    /**
+     * 每纳秒生成的令牌数
+     */
+    private final double permitsPerNanos;
+    /**
+     * 桶的容量
+     */
+    private final double capacity;
+    /**
+     * 当前的令牌数
+     */
+    private double tokens;
+    /**
+     * 上一次补充令牌的时间
+     */
+    private long lastRefillNanos;
+
+    public LocalTokenBucket(double permitsPerSecond, int burst) {
+        this.permitsPerNanos = permitsPerSecond / 1_000_000_000D;
+        this.capacity = burst > 0 ? burst : Math.max(1, permitsPerSecond);
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 尝试获取一个令牌
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerNanos);
+        lastRefillNanos = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
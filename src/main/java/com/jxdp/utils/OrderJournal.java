@@ -0,0 +1,373 @@
+package com.jxdp.utils;
+
+import com.jxdp.entity.VoucherOrder;
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * 本地订单日志
+ * 数据库不可用(或者很慢)时，消费者把订单追加写入本地磁盘上的日志文件后直接ACK，不再让stream和pending-list堆积，
+ * 数据库恢复后由OrderJournalReplayer把日志中的订单批量写入数据库
+ * 1. 日志按固定大小分段(journal-{序号}.log)，通过内存映射写入，每次追加一批订单只fsync一次
+ * 2. 每条记录固定36字节：魔数(4) 订单id(8) 用户id(8) 优惠卷id(8) 限购数量(4) crc32(4)，
+ *    启动时从最后一个分段中找到第一条无效的记录作为写入位置，没有写完整的记录会被覆盖
+ * 3. 回放进度记录在checkpoint文件中(分段序号、分段内偏移)，回放完的分段会被删除
+ * 4. 每张优惠卷还没有回放的订单数记录在redis的seckill:journal:pending:{实例id}中，实例id登记在seckill:journal:owners中，
+ *    库存对账时跳过这些优惠卷，避免把日志中还没有落库的订单当成库存差异；
+ *    这个key由回放任务不断续期，实例宕机后过期(日志在宕机实例的磁盘上，其他实例无法回放)，
+ *    实例重启后根据日志中还没有回放的订单重新登记
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    private static final int MAGIC = 0x5EC1_0D3F;
+    public static final int RECORD_SIZE = 36;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int REGISTER_BATCH_SIZE = 10000;
+
+    private Path dir;
+    private String pendingKey;
+    private int segmentRecords;
+    /**
+     * 当前写入的分段
+     */
+    private long writeSegment;
+    private FileChannel writeChannel;
+    private MappedByteBuffer writeBuffer;
+    /**
+     * 已经fsync的位置，回放只读取到这个位置
+     */
+    private volatile Position durablePosition;
+
+    /**
+     * 日志中的位置：分段序号 + 分段内的偏移(字节)
+     */
+    public static class Position {
+        public final long segment;
+        public final int offset;
+
+        public Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * 读取到的一批订单以及读完之后的位置
+     */
+    public static class Batch {
+        public final List<VoucherOrder> orders;
+        public final Position next;
+
+        Batch(List<VoucherOrder> orders, Position next) {
+            this.orders = orders;
+            this.next = next;
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (!config.isEnabled()){
+            return;
+        }
+        dir = Paths.get(config.getDir());
+        Files.createDirectories(dir);
+        segmentRecords = (int) Math.max(1, config.getSegmentSize() / RECORD_SIZE);
+        List<Long> segments = listSegments();
+        writeSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        openSegment(writeSegment);
+        // 找到第一条无效的记录
+        int offset = 0;
+        while (offset + RECORD_SIZE <= writeBuffer.capacity() && readRecord(writeBuffer, offset) != null) {
+            offset += RECORD_SIZE;
+        }
+        writeBuffer.position(offset);
+        durablePosition = new Position(writeSegment, offset);
+        pendingKey = RedisConstants.SECKILL_JOURNAL_PENDING_KEY + seckillProperties.getInstanceId();
+        log.info("订单日志已打开: {}，当前分段: {}，偏移: {}", dir.toAbsolutePath(), writeSegment, offset);
+        registerPending();
+    }
+
+    public boolean isEnabled(){
+        return writeBuffer != null;
+    }
+
+    /**
+     * 追加一批订单，写完之后fsync一次
+     */
+    public synchronized void append(List<VoucherOrder> orders){
+        try {
+            for (VoucherOrder voucherOrder : orders) {
+                if (writeBuffer.remaining() < RECORD_SIZE){
+                    // 当前分段写满了，切换到下一个分段
+                    writeBuffer.force();
+                    writeChannel.close();
+                    openSegment(++writeSegment);
+                }
+                writeRecord(writeBuffer, voucherOrder);
+            }
+            writeBuffer.force();
+            durablePosition = new Position(writeSegment, writeBuffer.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入订单日志失败", e);
+        }
+        adjustPending(orders, 1);
+    }
+
+    /**
+     * 是否还有没有回放的订单
+     */
+    public boolean hasPending(){
+        if (!isEnabled()){
+            return false;
+        }
+        Position checkpoint = readCheckpoint();
+        Position durable = durablePosition;
+        return checkpoint.segment < durable.segment || checkpoint.offset < durable.offset;
+    }
+
+    /**
+     * 从回放进度开始读取最多max条订单
+     */
+    public Batch read(int max){
+        return read(readCheckpoint(), max);
+    }
+
+    private Batch read(Position position, int max){
+        Position durable = durablePosition;
+        List<VoucherOrder> orders = new ArrayList<>(max);
+        long segment = position.segment;
+        int offset = position.offset;
+        try {
+            while (orders.size() < max && (segment < durable.segment || offset < durable.offset)){
+                int end = segment < durable.segment ? segmentRecords * RECORD_SIZE : durable.offset;
+                if (offset >= end){
+                    segment++;
+                    offset = 0;
+                    continue;
+                }
+                int length = Math.min(end - offset, (max - orders.size()) * RECORD_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                    channel.read(buffer, offset);
+                }
+                for (int i = 0; i + RECORD_SIZE <= length; i += RECORD_SIZE) {
+                    VoucherOrder voucherOrder = readRecord(buffer, i);
+                    if (voucherOrder == null){
+                        // 分段末尾没有写满的部分
+                        offset = end;
+                        break;
+                    }
+                    orders.add(voucherOrder);
+                    offset += RECORD_SIZE;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取订单日志失败", e);
+        }
+        return new Batch(orders, new Position(segment, offset));
+    }
+
+    /**
+     * 记录回放进度，并删除已经回放完的分段
+     */
+    public void commit(Batch batch){
+        Position position = batch.next;
+        try {
+            Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(12).putLong(position.segment).putInt(position.offset);
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(buffer);
+                channel.force(true);
+            }
+            Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Long segment : listSegments()) {
+                if (segment < position.segment && segment < writeSegment){
+                    Files.deleteIfExists(segmentPath(segment));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("保存订单日志回放进度失败", e);
+        }
+        adjustPending(batch.orders, -1);
+    }
+
+    /**
+     * 续期本实例还没有回放的订单数，由回放任务定时调用
+     */
+    public void keepAlive(){
+        if (!hasPending()){
+            return;
+        }
+        stringRedisTemplate.expire(pendingKey, seckillProperties.getJournal().getPendingTtl());
+        stringRedisTemplate.opsForSet().add(RedisConstants.SECKILL_JOURNAL_OWNERS_KEY, seckillProperties.getInstanceId());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (writeBuffer != null){
+            writeBuffer.force();
+            writeChannel.close();
+        }
+    }
+
+    /**
+     * 启动时根据日志中还没有回放的订单重新登记每张优惠卷的订单数(宕机期间key可能已经过期了)
+     */
+    private void registerPending(){
+        Map<Long, Long> counts = new HashMap<>();
+        Position position = readCheckpoint();
+        while (true){
+            Batch batch = read(position, REGISTER_BATCH_SIZE);
+            if (batch.orders.isEmpty()){
+                break;
+            }
+            batch.orders.forEach(voucherOrder -> counts.merge(voucherOrder.getVoucherId(), 1L, Long::sum));
+            position = batch.next;
+        }
+        try {
+            stringRedisTemplate.delete(pendingKey);
+            if (!counts.isEmpty()){
+                Map<String, String> values = new HashMap<>(counts.size());
+                counts.forEach((voucherId, count) -> values.put(voucherId.toString(), count.toString()));
+                stringRedisTemplate.opsForHash().putAll(pendingKey, values);
+                keepAlive();
+                log.warn("订单日志中还有 {} 张优惠卷的订单没有回放", counts.size());
+            }
+        } catch (Exception e) {
+            // redis不可用时不影响启动，第一次追加或者回放时再登记
+            log.error("登记订单日志中没有回放的订单失败", e);
+        }
+    }
+
+    /**
+     * 按优惠卷增加(sign=1)或者减少(sign=-1)还没有回放的订单数，减到0时删除
+     */
+    private void adjustPending(List<VoucherOrder> orders, int sign){
+        if (orders.isEmpty()){
+            return;
+        }
+        Map<Long, Long> counts = orders.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        byte[] key = pendingKey.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            counts.forEach((voucherId, count) -> connection.hashCommands()
+                    .hIncrBy(key, voucherId.toString().getBytes(StandardCharsets.UTF_8), sign * count));
+            return null;
+        });
+        if (sign > 0){
+            keepAlive();
+            return;
+        }
+        List<Long> voucherIds = new ArrayList<>(counts.keySet());
+        for (int i = 0; i < voucherIds.size(); i++) {
+            if (((Number) results.get(i)).longValue() <= 0){
+                stringRedisTemplate.opsForHash().delete(pendingKey, voucherIds.get(i).toString());
+            }
+        }
+    }
+
+    private Position readCheckpoint(){
+        Path path = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)){
+            List<Long> segments = listSegments();
+            return new Position(segments.isEmpty() ? 0 : segments.get(0), 0);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            return new Position(buffer.getLong(), buffer.getInt());
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取订单日志回放进度失败", e);
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        writeChannel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeBuffer = writeChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+    }
+
+    private List<Long> listSegments(){
+        List<Long> segments = new ArrayList<>();
+        File[] files = dir.toFile().listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null){
+            for (File file : files) {
+                String name = file.getName();
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        segments.sort(Long::compare);
+        return segments;
+    }
+
+    private Path segmentPath(long segment){
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static void writeRecord(ByteBuffer buffer, VoucherOrder voucherOrder){
+        int start = buffer.position();
+        buffer.putInt(MAGIC)
+                .putLong(voucherOrder.getId())
+                .putLong(voucherOrder.getUserId())
+                .putLong(voucherOrder.getVoucherId())
+                .putInt(voucherOrder.getUserLimit() == null ? 0 : voucherOrder.getUserLimit());
+        buffer.putInt(crc(buffer, start));
+    }
+
+    /**
+     * 读取offset位置的记录，无效(没有写入或者没有写完整)时返回null
+     */
+    private static VoucherOrder readRecord(ByteBuffer buffer, int offset){
+        if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + RECORD_SIZE - 4) != crc(buffer, offset)){
+            return null;
+        }
+        int userLimit = buffer.getInt(offset + 28);
+        return new VoucherOrder()
+                .setId(buffer.getLong(offset + 4))
+                .setUserId(buffer.getLong(offset + 12))
+                .setVoucherId(buffer.getLong(offset + 20))
+                .setUserLimit(userLimit == 0 ? null : userLimit);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset){
+        CRC32 crc32 = new CRC32();
+        for (int i = offset; i < offset + RECORD_SIZE - 4; i++) {
+            crc32.update(buffer.get(i));
+        }
+        return (int) crc32.getValue();
+    }
+}
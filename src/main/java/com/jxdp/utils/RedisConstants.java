@@ -11,10 +11,29 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_COUNT_KEY = "seckill:order:count:";
+    public static final String SECKILL_ORDER_BITS_KEY = "seckill:order:bits:";
+    public static final String SECKILL_ORDER_DELAY_KEY = "seckill:order:delay";
+    public static final String SECKILL_JOURNAL_PENDING_KEY = "seckill:journal:pending:";
+    public static final String SECKILL_JOURNAL_OWNERS_KEY = "seckill:journal:owners";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_RESULT_CHANNEL = "seckill:order:result";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String LOCK_ORDER_KEY = "lock:order:";
+    public static final String RATE_LIMIT_KEY = "limit:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
 
     public static final String FOLLOW_KEY = "follow:";
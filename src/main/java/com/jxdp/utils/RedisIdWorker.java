@@ -1,15 +1,37 @@
 package com.jxdp.utils;
 
+import com.jxdp.properties.IdWorkerProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 全局id生成器：id = 时间戳(相对于BEGIN_TIMESTAMP的秒数) << 32 | 当天的序列号
+ * 序列号通过redis的icr:{业务前缀}:{日期}自增生成
+ * 开启号段模式时，每次通过INCRBY申请一段序列号(step个)放在本地分配，
+ * 当前号段剩余不多时异步申请下一个号段(双缓冲)，大部分id的生成不需要访问redis
+ * 号段只在申请它的那一天使用，日期变化时丢弃剩余的序列号，保证同一天内的序列号不重复
+ */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdWorker {
     /**
      * 开始时间戳
      */
@@ -18,9 +40,30 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    IdWorkerProperties idWorkerProperties;
+    @Resource
+    MeterRegistry meterRegistry;
+
+    /**
+     * key：业务前缀，value：该业务的号段
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> generatedCounters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> allocateTimers = new ConcurrentHashMap<>();
+    /**
+     * 异步申请号段的线程
+     */
+    private final ExecutorService segmentLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    @Override
     public long nextId(String keyPrefix){
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -33,12 +76,138 @@ public class RedisIdWorker {
          * 而且这样也方便统计每一天的订单数等这些信息
          */
         // 2.1 获取到当前日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2 通过redis的自增长生成序列号
         // increment方法，若key不存在，则会自动创建这个key
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (idWorkerProperties.getSegment().isEnabled()){
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(date);
+        } else {
+            count = stringRedisTemplate.opsForValue().increment(icrKey(keyPrefix, date));
+        }
+        generatedCounter(keyPrefix).increment();
         // 3. 凭借并返回
         long id = timestamp << COUNT_BITS | count;
         return id;
     }
+
+    @PreDestroy
+    public void close(){
+        segmentLoader.shutdownNow();
+    }
+
+    private static String icrKey(String keyPrefix, String date){
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    private Counter generatedCounter(String keyPrefix){
+        return generatedCounters.computeIfAbsent(keyPrefix, prefix -> Counter.builder("id.worker.generated")
+                .tag("prefix", prefix)
+                .description("生成的id数量")
+                .register(meterRegistry));
+    }
+
+    /**
+     * 号段：[start, max]，只在date这一天使用
+     */
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final AtomicLong cursor;
+
+        Segment(String date, long start, long max) {
+            this.date = date;
+            this.max = max;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段 + 正在申请或者已经申请好的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private final AtomicReference<CompletableFuture<Segment>> next = new AtomicReference<>();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextCount(String date){
+            while (true){
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)){
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max){
+                        IdWorkerProperties.Segment config = idWorkerProperties.getSegment();
+                        if (segment.max - count < config.getStep() * config.getPrefetchRatio()){
+                            prefetch(date);
+                        }
+                        return count;
+                    }
+                }
+                // 当前号段用完了或者日期变了，切换到下一个号段
+                synchronized (this) {
+                    if (current == segment){
+                        current = take(date);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 异步申请下一个号段，同一时间只有一个申请
+         */
+        private void prefetch(String date){
+            if (next.get() != null){
+                return;
+            }
+            CompletableFuture<Segment> future = new CompletableFuture<>();
+            if (!next.compareAndSet(null, future)){
+                return;
+            }
+            try {
+                segmentLoader.execute(() -> {
+                    try {
+                        future.complete(allocate(date));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 取出预先申请好的号段，没有或者日期不对时同步申请
+         */
+        private Segment take(String date){
+            CompletableFuture<Segment> future = next.getAndSet(null);
+            if (future != null){
+                try {
+                    Segment segment = future.join();
+                    if (segment.date.equals(date)){
+                        return segment;
+                    }
+                } catch (Exception e) {
+                    log.warn("异步申请号段失败，改为同步申请: {}", keyPrefix, e);
+                }
+            }
+            return allocate(date);
+        }
+
+        private Segment allocate(String date){
+            int step = Math.max(1, idWorkerProperties.getSegment().getStep());
+            long start = System.nanoTime();
+            Long max = stringRedisTemplate.opsForValue().increment(icrKey(keyPrefix, date), step);
+            allocateTimers.computeIfAbsent(keyPrefix, prefix -> Timer.builder("id.worker.segment.allocate")
+                    .tag("prefix", prefix)
+                    .description("申请号段的耗时")
+                    .register(meterRegistry))
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return new Segment(date, max - step + 1, max);
+        }
+    }
 }
@@ -0,0 +1,232 @@
+package com.jxdp.utils;
+
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 秒杀购买资格的批量判断
+ * 高峰期每个请求都执行一次lua脚本，redis的QPS就是下单请求的QPS，
+ * 开启后同一张优惠卷在window时间内到达的请求合并成一批，通过一次seckill_batch.lua判断这一批用户的购买资格，
+ * 每个请求多等待不超过一个window的时间，redis的脚本调用次数减少为原来的 1/批量大小
+ * 1. 一批中的第一个请求到达时安排在window之后执行，凑满maxSize个时立即执行
+ * 2. 批量脚本按seckill.lua的逻辑逐个判断，结果和逐个调用相同
+ * 3. 脚本执行异常时这一批请求都以异常结束；等待超过timeout或者线程池拒绝执行时请求失败，
+ *    超时时还没有开始执行的请求会从批次中撤回，不会在请求失败之后才获得购买资格
+ * 4. 线程池在第一次使用时才创建，没有开启批量判断时不占用线程
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionBatcher {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<List<Object>> BATCH_SCRIPT;
+    static {
+        @SuppressWarnings("unchecked")
+        Class<List<Object>> resultType = (Class<List<Object>>) (Class<?>) List.class;
+        // redis的lua脚本不能引用其他脚本，把seckill.lua包装成函数拼接在批量脚本前面，两处的逻辑只维护一份
+        DefaultRedisScript<Long> single = new DefaultRedisScript<>();
+        single.setLocation(new ClassPathResource("seckill.lua"));
+        DefaultRedisScript<Long> batch = new DefaultRedisScript<>();
+        batch.setLocation(new ClassPathResource("seckill_batch.lua"));
+        BATCH_SCRIPT = new DefaultRedisScript<>();
+        BATCH_SCRIPT.setScriptText("local function admit(ARGV)\n" + single.getScriptAsString() + "\nend\n"
+                + batch.getScriptAsString());
+        BATCH_SCRIPT.setResultType(resultType);
+    }
+
+    /**
+     * key：优惠卷id，value：正在收集的一批请求
+     */
+    private final Map<Long, Batch> batches = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+
+    private static class Batch {
+        private final List<String> args = new ArrayList<>();
+        private final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        /**
+         * 已经开始执行，不再接收新的请求
+         */
+        private boolean closed;
+    }
+
+    public boolean isEnabled(){
+        return seckillProperties.getBatch().isEnabled();
+    }
+
+    /**
+     * 判断用户的购买资格，阻塞到这一批请求执行完
+     * @return seckill.lua的返回值
+     */
+    public int admit(Long voucherId, Long userId, long orderId, String streamKey){
+        SeckillProperties.Batch config = seckillProperties.getBatch();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Batch batch = submit(voucherId, userId, orderId, streamKey, future);
+        try {
+            return future.get(config.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (withdraw(batch, future)){
+                throw new IllegalStateException("批量判断购买资格超时，优惠卷id: " + voucherId);
+            }
+            // 已经在执行脚本了，结果和单个脚本调用超时一样无法确定
+            throw new IllegalStateException("批量判断购买资格超时(脚本已经开始执行)，优惠卷id: " + voucherId);
+        } catch (InterruptedException e) {
+            withdraw(batch, future);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待批量判断购买资格时被中断", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * 把请求加入这张优惠卷正在收集的一批中
+     * @return 请求所在的批次
+     */
+    private Batch submit(Long voucherId, Long userId, long orderId, String streamKey, CompletableFuture<Integer> future){
+        SeckillProperties.Batch config = seckillProperties.getBatch();
+        ScheduledExecutorService executor = scheduler();
+        while (true){
+            // 线程池拒绝执行时抛出RejectedExecutionException，批次不会被创建，请求直接失败
+            Batch batch = batches.computeIfAbsent(voucherId, id -> {
+                Batch created = new Batch();
+                executor.schedule(() -> flush(voucherId, created), config.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+                return created;
+            });
+            boolean full;
+            synchronized (batch) {
+                if (batch.closed){
+                    // 这一批刚好开始执行，放入下一批
+                    continue;
+                }
+                batch.args.add(userId.toString());
+                batch.args.add(String.valueOf(orderId));
+                batch.args.add(streamKey);
+                batch.futures.add(future);
+                full = batch.futures.size() >= config.getMaxSize();
+            }
+            if (full){
+                try {
+                    executor.execute(() -> flush(voucherId, batch));
+                } catch (RejectedExecutionException e) {
+                    fail(voucherId, batch, e);
+                }
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * 从还没有开始执行的批次中撤回请求
+     * @return 是否撤回成功，批次已经开始执行时返回false
+     */
+    private boolean withdraw(Batch batch, CompletableFuture<Integer> future){
+        synchronized (batch) {
+            if (batch.closed){
+                return false;
+            }
+            int index = batch.futures.indexOf(future);
+            if (index < 0){
+                return false;
+            }
+            batch.futures.remove(index);
+            // 每个请求在args中占3个参数：用户id、订单id、stream
+            batch.args.subList(index * 3, index * 3 + 3).clear();
+            return true;
+        }
+    }
+
+    /**
+     * 线程池在第一次使用时创建
+     */
+    private ScheduledExecutorService scheduler(){
+        ScheduledExecutorService current = scheduler;
+        if (current != null){
+            return current;
+        }
+        synchronized (this) {
+            if (scheduler == null){
+                AtomicInteger threadIndex = new AtomicInteger();
+                scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                        r -> {
+                            Thread thread = new Thread(r, "seckill-admission-" + threadIndex.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+            }
+            return scheduler;
+        }
+    }
+
+    private void fail(Long voucherId, Batch batch, Exception e){
+        synchronized (batch) {
+            if (batch.closed){
+                return;
+            }
+            batch.closed = true;
+        }
+        batches.remove(voucherId, batch);
+        batch.futures.forEach(future -> future.completeExceptionally(e));
+    }
+
+    private void flush(Long voucherId, Batch batch){
+        synchronized (batch) {
+            if (batch.closed){
+                return;
+            }
+            batch.closed = true;
+        }
+        batches.remove(voucherId, batch);
+        if (batch.futures.isEmpty()){
+            // 请求都已经撤回了
+            return;
+        }
+        try {
+            List<String> args = new ArrayList<>(batch.args.size() + 4);
+            args.add(voucherId.toString());
+            args.add(seckillProperties.getLease().isEnabled() ? "1" : "0");
+            args.add(String.valueOf(seckillProperties.getOrderStatusTtl().getSeconds()));
+            args.add(seckillProperties.getInstanceId());
+            args.addAll(batch.args);
+            List<Object> results = stringRedisTemplate.execute(BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+            for (int i = 0; i < batch.futures.size(); i++) {
+                batch.futures.get(i).complete(((Number) results.get(i)).intValue());
+            }
+        } catch (Exception e) {
+            log.error("批量判断购买资格异常，优惠卷id: {}，请求数: {}", voucherId, batch.futures.size(), e);
+            batch.futures.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    @PreDestroy
+    public void close(){
+        if (scheduler != null){
+            scheduler.shutdown();
+        }
+    }
+}
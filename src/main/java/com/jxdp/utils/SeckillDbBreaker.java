@@ -0,0 +1,64 @@
+package com.jxdp.utils;
+
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下单数据库的熔断器
+ * 连续failureThreshold次下单失败(数据库异常)或者耗时超过slowThreshold，就打开熔断器，
+ * 打开期间消费者把订单写入本地订单日志，不再访问数据库；经过openDuration后放行请求试探，成功一次就关闭
+ */
+@Slf4j
+@Component
+public class SeckillDbBreaker {
+    @Resource
+    SeckillProperties seckillProperties;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    /**
+     * 熔断器打开的截止时间，0表示关闭
+     */
+    private volatile long openUntil = 0;
+
+    /**
+     * 是否允许访问数据库
+     */
+    public boolean allowRequest(){
+        return openUntil == 0 || System.currentTimeMillis() >= openUntil;
+    }
+
+    /**
+     * 熔断器是否处于关闭状态(数据库正常)
+     */
+    public boolean isClosed(){
+        return openUntil == 0;
+    }
+
+    /**
+     * 记录一次成功的下单，耗时过长也算一次失败
+     */
+    public void recordSuccess(long elapsedNanos){
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (elapsedNanos > config.getSlowThreshold().toNanos()){
+            recordFailure();
+            return;
+        }
+        failures.set(0);
+        if (openUntil != 0){
+            openUntil = 0;
+            log.info("下单数据库已恢复，熔断器关闭");
+        }
+    }
+
+    public void recordFailure(){
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (failures.incrementAndGet() >= config.getFailureThreshold()){
+            openUntil = System.currentTimeMillis() + config.getOpenDuration().toMillis();
+            log.warn("下单数据库连续 {} 次异常或超时，熔断器打开，订单写入本地日志", failures.get());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.jxdp.utils;
+
+import com.jxdp.properties.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀链路指标
+ * 1. 订单stream的长度、消费者组的积压(lag)和pending数量，定时从redis中刷新，以gauge的形式暴露
+ * 2. 下单各个阶段(加锁、count、扣库存、插入订单)的耗时，以timer的形式暴露
+ * 3. 订单创建成功、失败、写入本地日志、转入死信队列的数量，以及每秒创建的订单数
+ * 指标通过micrometer注册，可以在/actuator/metrics中查看，也可以通过/voucher-order/metrics一次性查看
+ */
+@Slf4j
+@Component
+public class SeckillMetrics {
+    @Resource
+    MeterRegistry meterRegistry;
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    /**
+     * redis版本低于7时XINFO GROUPS中没有lag字段，通过XRANGE统计未投递的消息数，最多统计这么多条
+     */
+    private static final long LAG_SCAN_LIMIT = 1000;
+
+    /**
+     * key：stream，value：该stream最近一次刷新的统计信息
+     */
+    private final Map<String, StreamStats> streamStats = new ConcurrentHashMap<>();
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private double lastCreatedCount;
+    private long lastRefreshTime;
+    private volatile double ordersPerSecond;
+
+    private static class StreamStats {
+        private volatile long length;
+        private volatile long pending;
+        private volatile long lag;
+        private volatile long consumers;
+    }
+
+    /**
+     * 记录下单某个阶段的耗时
+     * @param stage 阶段名：lock、count、update、insert等
+     * @param startNanos 阶段开始时的System.nanoTime()
+     */
+    public void recordStage(String stage, long startNanos){
+        stageTimers.computeIfAbsent(stage, s -> Timer.builder("seckill.order.stage")
+                .tag("stage", s)
+                .description("秒杀下单各阶段的耗时")
+                .register(meterRegistry))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void countCreated(int count){
+        increment("seckill.order.created", count);
+    }
+
+    public void countFailed(int count){
+        increment("seckill.order.failed", count);
+    }
+
+    /**
+     * 数据库熔断期间写入本地订单日志的订单数量
+     */
+    public void countJournaled(int count){
+        increment("seckill.order.journaled", count);
+    }
+
+    public void countDeadLetter(){
+        increment("seckill.order.deadletter", 1);
+    }
+
+    /**
+     * 记录秒杀脚本的执行结果(0成功，其他为失败原因)
+     */
+    public void countAdmission(int result){
+        increment("seckill.admission." + result, 1);
+    }
+
+    private void increment(String name, int count){
+        if (count <= 0){
+            return;
+        }
+        counters.computeIfAbsent(name, n -> Counter.builder(n).register(meterRegistry)).increment(count);
+    }
+
+    /**
+     * 定时刷新stream的长度、积压和pending数量，以及每秒创建的订单数
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.metrics-refresh-interval:5000}")
+    public void refresh(){
+        SeckillProperties.OrderStream streamConfig = seckillProperties.getStream();
+        String group = seckillProperties.getConsumer().getGroup();
+        for (int p = 0; p < Math.max(1, streamConfig.getPartitions()); p++) {
+            String key = streamConfig.keyOf(p);
+            try {
+                refreshStream(key, group);
+            } catch (Exception e) {
+                log.warn("刷新stream指标失败: {}", key, e);
+            }
+        }
+        // 每秒创建的订单数
+        Counter created = counters.get("seckill.order.created");
+        double createdCount = created == null ? 0 : created.count();
+        long now = System.currentTimeMillis();
+        if (lastRefreshTime > 0 && now > lastRefreshTime){
+            ordersPerSecond = (createdCount - lastCreatedCount) * 1000 / (now - lastRefreshTime);
+        }
+        lastCreatedCount = createdCount;
+        lastRefreshTime = now;
+    }
+
+    private void refreshStream(String key, String group){
+        StreamStats stats = streamStats.computeIfAbsent(key, this::registerGauges);
+        Long length = stringRedisTemplate.opsForStream().size(key);
+        stats.length = length == null ? 0 : length;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+        groups.forEach(info -> {
+            if (!group.equals(info.groupName())){
+                return;
+            }
+            stats.pending = info.pendingCount();
+            stats.consumers = info.consumerCount();
+            Object lag = info.getRaw().get("lag");
+            if (lag instanceof Number){
+                stats.lag = ((Number) lag).longValue();
+            } else if (lag != null && !"".equals(lag.toString())){
+                stats.lag = Long.parseLong(lag.toString());
+            } else {
+                // 统计最后投递的消息之后还有多少条消息
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(key,
+                        Range.rightUnbounded(Range.Bound.exclusive(info.lastDeliveredId())),
+                        RedisZSetCommands.Limit.limit().count((int) LAG_SCAN_LIMIT));
+                stats.lag = records == null ? 0 : records.size();
+            }
+        });
+    }
+
+    private StreamStats registerGauges(String key){
+        StreamStats stats = new StreamStats();
+        Gauge.builder("seckill.stream.length", stats, s -> s.length).tag("stream", key)
+                .description("订单stream中的消息数量").register(meterRegistry);
+        Gauge.builder("seckill.stream.pending", stats, s -> s.pending).tag("stream", key)
+                .description("已投递但没有确认的消息数量").register(meterRegistry);
+        Gauge.builder("seckill.stream.lag", stats, s -> s.lag).tag("stream", key)
+                .description("还没有投递给消费者的消息数量").register(meterRegistry);
+        Gauge.builder("seckill.stream.consumers", stats, s -> s.consumers).tag("stream", key)
+                .description("消费者组中的消费者数量").register(meterRegistry);
+        return stats;
+    }
+
+    /**
+     * 当前所有指标的快照
+     */
+    public Map<String, Object> snapshot(){
+        Map<String, Object> result = new LinkedHashMap<>();
+        Map<String, Object> streams = new LinkedHashMap<>();
+        streamStats.forEach((key, stats) -> {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("length", stats.length);
+            value.put("pending", stats.pending);
+            value.put("lag", stats.lag);
+            value.put("consumers", stats.consumers);
+            streams.put(key, value);
+        });
+        result.put("streams", streams);
+        result.put("ordersPerSecond", ordersPerSecond);
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> counts.put(name, (long) counter.count()));
+        result.put("counters", counts);
+        Map<String, Object> stages = new LinkedHashMap<>();
+        stageTimers.forEach((stage, timer) -> {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("count", timer.count());
+            value.put("meanMillis", timer.mean(TimeUnit.MILLISECONDS));
+            value.put("maxMillis", timer.max(TimeUnit.MILLISECONDS));
+            stages.put(stage, value);
+        });
+        result.put("stages", stages);
+        return result;
+    }
+}
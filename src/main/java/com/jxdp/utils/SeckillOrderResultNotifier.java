@@ -0,0 +1,88 @@
+package com.jxdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.jxdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 秒杀订单结果推送
+ * 客户端下单成功后发起一个长轮询请求，请求挂起在本实例的内存中(不占用tomcat线程)，
+ * 消费者落库成功或失败后通过redis发布订阅广播订单结果，每个实例收到消息后完成自己挂起的请求，
+ * 客户端只需要一次请求就能拿到结果，不需要反复轮询订单状态
+ */
+@Slf4j
+@Component
+public class SeckillOrderResultNotifier implements MessageListener {
+    @Resource
+    SeckillOrderStatusRecorder seckillOrderStatusRecorder;
+
+    /**
+     * key：订单id，value：等待该订单结果的请求
+     */
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 订阅订单结果
+     * @param orderId 订单id
+     * @param userId 当前用户id，只能订阅自己的订单
+     * @param timeoutMillis 超时时间，超时后返回QUEUED，客户端可以再次订阅
+     */
+    public DeferredResult<Result> subscribe(Long orderId, Long userId, long timeoutMillis){
+        SeckillOrderStatusRecorder.Status owned = seckillOrderStatusRecorder.get(orderId, userId);
+        if (owned == null){
+            // 状态已经过期或者订单不属于当前用户，不挂起请求，客户端改为查询订单状态
+            DeferredResult<Result> unknown = new DeferredResult<>();
+            unknown.setResult(Result.ok(SeckillOrderStatusRecorder.Status.UNKNOWN.name()));
+            return unknown;
+        }
+        DeferredResult<Result> deferredResult = new DeferredResult<>(timeoutMillis,
+                Result.ok(SeckillOrderStatusRecorder.Status.QUEUED.name()));
+        Queue<DeferredResult<Result>> queue = waiters.computeIfAbsent(orderId, id -> new ConcurrentLinkedQueue<>());
+        queue.add(deferredResult);
+        deferredResult.onCompletion(() -> {
+            queue.remove(deferredResult);
+            if (queue.isEmpty()){
+                waiters.remove(orderId, queue);
+            }
+        });
+        // 先注册再查询一次状态，避免注册之前结果已经广播过了
+        SeckillOrderStatusRecorder.Status status = seckillOrderStatusRecorder.get(orderId, userId);
+        if (status != null && status != SeckillOrderStatusRecorder.Status.QUEUED){
+            deferredResult.setResult(Result.ok(status.name()));
+        }
+        return deferredResult;
+    }
+
+    /**
+     * 接收订单结果广播，消息格式：状态:订单id,订单id,...
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0){
+            return;
+        }
+        String status = body.substring(0, index);
+        for (String orderId : StrUtil.split(body.substring(index + 1), ',')) {
+            Queue<DeferredResult<Result>> queue = waiters.remove(Long.valueOf(orderId));
+            if (queue == null){
+                continue;
+            }
+            for (DeferredResult<Result> deferredResult : queue) {
+                deferredResult.setResult(Result.ok(status));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.jxdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.jxdp.properties.SeckillProperties;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 秒杀订单状态
+ * 秒杀下单是异步的，接口返回订单id时订单还没有落库，
+ * 所以用一个有过期时间的hash记录订单的处理状态：lua脚本中写入QUEUED和下单用户，消费者落库成功后改为CREATED，失败改为FAILED，
+ * 客户端轮询这个key就能知道订单是否创建成功，不需要查询tb_voucher_order，查询时只返回当前用户自己的订单
+ * 状态变为CREATED或FAILED时还会广播订单结果，见SeckillOrderResultNotifier
+ */
+@Component
+public class SeckillOrderStatusRecorder {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    private static final String STATUS_FIELD = "status";
+    private static final String USER_FIELD = "userId";
+
+    public enum Status {
+        /**
+         * 已经获得购买资格，等待落库(转入死信队列的订单也保持这个状态，直到重新投递后落库或者被丢弃)
+         */
+        QUEUED,
+        /**
+         * 订单已经创建
+         */
+        CREATED,
+        /**
+         * 订单创建失败
+         */
+        FAILED,
+        /**
+         * 状态key已经过期(或订单不属于当前用户)且数据库中没有订单，
+         * 订单可能还积压在消息队列、死信队列或本地日志中，也可能已经失败，无法确定
+         */
+        UNKNOWN
+    }
+
+    public void markCreated(Collection<Long> orderIds){
+        mark(orderIds, Status.CREATED);
+    }
+
+    public void markFailed(Collection<Long> orderIds){
+        mark(orderIds, Status.FAILED);
+    }
+
+    /**
+     * 查询订单状态
+     * @param userId 当前用户id，订单不是该用户下的时按不存在处理
+     * @return 状态key已经过期或订单不属于该用户时返回null
+     */
+    public Status get(Long orderId, Long userId){
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId, Arrays.asList(STATUS_FIELD, USER_FIELD));
+        Object status = values.get(0);
+        if (status == null || !String.valueOf(userId).equals(values.get(1))){
+            return null;
+        }
+        return Status.valueOf(status.toString());
+    }
+
+    /**
+     * 批量写入订单状态，使用pipeline一次网络往返
+     */
+    private void mark(Collection<Long> orderIds, Status status){
+        if (orderIds.isEmpty()){
+            return;
+        }
+        byte[] field = STATUS_FIELD.getBytes(StandardCharsets.UTF_8);
+        byte[] value = status.name().getBytes(StandardCharsets.UTF_8);
+        long ttl = seckillProperties.getOrderStatusTtl().getSeconds();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long orderId : orderIds) {
+                // 只改状态字段，保留lua脚本写入的下单用户
+                byte[] key = (RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId).getBytes(StandardCharsets.UTF_8);
+                connection.hashCommands().hSet(key, field, value);
+                connection.keyCommands().expire(key, ttl);
+            }
+            return null;
+        });
+        // 广播订单结果，完成各个实例上等待结果的请求
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_ORDER_RESULT_CHANNEL,
+                status.name() + ":" + StrUtil.join(",", orderIds));
+    }
+}
@@ -0,0 +1,91 @@
+package com.jxdp.utils;
+
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记
+ * 秒杀券卖完以后，后面绝大部分请求都是无效请求，每次都生成订单id、执行lua脚本只是为了得到"库存不足"
+ * 所以lua脚本返回库存不足时，在本地记录该优惠卷已经售罄，并通过redis的发布订阅通知其他实例，
+ * 之后的请求在JVM内部直接拒绝，不再访问redis
+ * 注意：发布订阅的消息可能会丢失，所以售罄标记有过期时间，过期后重新执行一次lua脚本确认
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutHolder implements MessageListener {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    /**
+     * key：优惠卷id，value：售罄标记的过期时间
+     */
+    private final Map<Long, Long> soldOutMap = new ConcurrentHashMap<>();
+
+    /**
+     * 判断优惠卷是否已经售罄
+     */
+    public boolean isSoldOut(Long voucherId){
+        Long expireTime = soldOutMap.get(voucherId);
+        if (expireTime == null){
+            return false;
+        }
+        if (expireTime < System.currentTimeMillis()){
+            soldOutMap.remove(voucherId, expireTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记优惠卷已经售罄，并通知其他实例
+     */
+    public void markSoldOut(Long voucherId){
+        if (isSoldOut(voucherId)){
+            // 已经标记过了，不需要重复通知
+            return;
+        }
+        markSoldOutLocally(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 库存回补(取消订单、库存对账修复等)以后清除售罄标记，并通知其他实例
+     */
+    public void markAvailable(Long voucherId){
+        soldOutMap.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 只在本地标记售罄，不通知其他实例(库存租约模式下其他实例可能还有本地库存)
+     */
+    public void markSoldOutLocally(Long voucherId){
+        soldOutMap.put(voucherId, System.currentTimeMillis() + seckillProperties.getSoldOut().getTtl().toMillis());
+    }
+
+    /**
+     * 接收其他实例(包括自己)发布的售罄/补货消息
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (RedisConstants.SECKILL_SOLD_OUT_CHANNEL.equals(channel)){
+            markSoldOutLocally(voucherId);
+        } else if (RedisConstants.SECKILL_RESTOCK_CHANNEL.equals(channel)){
+            soldOutMap.remove(voucherId);
+        }
+        log.debug("收到秒杀券库存消息，channel: {}, voucherId: {}", channel, voucherId);
+    }
+}
@@ -0,0 +1,164 @@
+package com.jxdp.utils;
+
+import com.jxdp.entity.SeckillVoucher;
+import com.jxdp.properties.SeckillProperties;
+import com.jxdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 库存租约
+ * 每个实例一次从redis中租用一批库存(blockSize)放到本地的原子计数器中，请求先扣减本地库存，
+ * 本地库存用完了再向redis租用下一批，redis中库存的操作次数减少为原来的 1/blockSize
+ * 一人一单仍然由lua脚本中的set判断
+ * 租约在秒杀结束、长时间没有请求或者实例关闭时归还到redis中
+ */
+@Slf4j
+@Component
+public class SeckillStockLeaser {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+    @Resource
+    ISeckillVoucherService seckillVoucherService;
+    @Resource
+    SeckillSoldOutHolder seckillSoldOutHolder;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * key：优惠卷id，value：本实例持有的租约
+     */
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private static class Lease {
+        /**
+         * 本地剩余的库存
+         */
+        private final AtomicInteger budget = new AtomicInteger();
+        /**
+         * 最后一次扣减本地库存的时间
+         */
+        private volatile long lastAcquireTime;
+    }
+
+    /**
+     * 扣减一个本地库存，本地库存不足时向redis租用下一批
+     * @return false表示redis中也没有库存了
+     */
+    public boolean tryAcquire(Long voucherId){
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        lease.lastAcquireTime = System.currentTimeMillis();
+        while (true){
+            int budget = lease.budget.get();
+            if (budget > 0){
+                if (lease.budget.compareAndSet(budget, budget - 1)){
+                    return true;
+                }
+                continue;
+            }
+            // 本地库存用完了，同一个优惠卷只允许一个线程去redis租用
+            synchronized (lease){
+                if (lease.budget.get() > 0){
+                    continue;
+                }
+                Long leased = stringRedisTemplate.execute(
+                        LEASE_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(),
+                        String.valueOf(seckillProperties.getLease().getBlockSize()),
+                        seckillProperties.getInstanceId()
+                );
+                if (leased == null || leased <= 0){
+                    return false;
+                }
+                lease.budget.addAndGet(leased.intValue());
+            }
+        }
+    }
+
+    /**
+     * 扣减的本地库存没有用掉(比如重复下单)，还回本地
+     */
+    public void release(Long voucherId){
+        Lease lease = leases.get(voucherId);
+        if (lease != null){
+            lease.budget.incrementAndGet();
+        }
+    }
+
+    /**
+     * 定期归还租约：秒杀已经结束，或者长时间没有请求(让其他实例能够继续卖这部分库存)
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void returnIdleLeases(){
+        if (leases.isEmpty()){
+            return;
+        }
+        List<SeckillVoucher> vouchers = seckillVoucherService.listByIds(leases.keySet());
+        LocalDateTime now = LocalDateTime.now();
+        long idleTimeout = seckillProperties.getLease().getIdleTimeout().toMillis();
+        for (SeckillVoucher voucher : vouchers) {
+            Lease lease = leases.get(voucher.getVoucherId());
+            if (lease == null || lease.budget.get() <= 0){
+                continue;
+            }
+            boolean ended = voucher.getEndTime() != null && voucher.getEndTime().isBefore(now);
+            boolean idle = System.currentTimeMillis() - lease.lastAcquireTime > idleTimeout;
+            if (ended || idle){
+                returnLease(voucher.getVoucherId(), lease, !ended);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void returnAll(){
+        leases.forEach((voucherId, lease) -> {
+            try {
+                returnLease(voucherId, lease, true);
+            } catch (Exception e) {
+                log.error("归还库存租约失败，voucherId: {}", voucherId, e);
+            }
+        });
+    }
+
+    private void returnLease(Long voucherId, Lease lease, boolean notify){
+        int count = lease.budget.getAndSet(0);
+        if (count <= 0){
+            return;
+        }
+        stringRedisTemplate.execute(
+                RETURN_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), String.valueOf(count), seckillProperties.getInstanceId()
+        );
+        log.debug("归还库存租约，voucherId: {}, 数量: {}", voucherId, count);
+        if (notify){
+            // 秒杀还在进行中，通知其他实例清除售罄标记
+            seckillSoldOutHolder.markAvailable(voucherId);
+        }
+    }
+}
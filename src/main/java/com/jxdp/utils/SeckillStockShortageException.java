@@ -0,0 +1,18 @@
+package com.jxdp.utils;
+
+/**
+ * 批量下单时数据库库存不足
+ * 这不是数据库故障，不计入熔断器；调用方应该回滚这一批，改为逐条下单找出失败的订单
+ */
+public class SeckillStockShortageException extends RuntimeException {
+    private final Long voucherId;
+
+    public SeckillStockShortageException(Long voucherId) {
+        super("库存不足，批量下单失败，voucherId: " + voucherId);
+        this.voucherId = voucherId;
+    }
+
+    public Long getVoucherId() {
+        return voucherId;
+    }
+}
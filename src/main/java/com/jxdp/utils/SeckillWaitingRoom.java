@@ -0,0 +1,57 @@
+package com.jxdp.utils;
+
+import com.jxdp.properties.SeckillProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+
+/**
+ * 秒杀虚拟等候室
+ * 秒杀开始的瞬间所有用户同时请求下单，开启排队后每个用户先领取一个排队号(redis计数器)，
+ * 排队号按照配置的速率依次放行，只有放行了的用户才能执行秒杀脚本，
+ * 这样redis和tomcat线程看到的是平稳的请求速率，没有放行的用户会拿到自己的排队位置和预计等待时间
+ */
+@Component
+public class SeckillWaitingRoom {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<Long> QUEUE_SCRIPT;
+    static {
+        QUEUE_SCRIPT = new DefaultRedisScript<>();
+        QUEUE_SCRIPT.setLocation(new ClassPathResource("seckill_queue.lua"));
+        QUEUE_SCRIPT.setResultType(Long.class);
+    }
+
+    public boolean isEnabled(){
+        return seckillProperties.getWaitingRoom().isEnabled();
+    }
+
+    /**
+     * 领取排队号并判断是否已经放行，重复调用拿到的是同一个排队号
+     * @return 0表示已经放行，大于0表示前面还有多少人
+     */
+    public long admit(Long voucherId, Long userId){
+        SeckillProperties.WaitingRoom waitingRoom = seckillProperties.getWaitingRoom();
+        return stringRedisTemplate.execute(
+                QUEUE_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), userId.toString(),
+                String.valueOf(waitingRoom.getReleaseRate()),
+                String.valueOf(waitingRoom.getTicketTtl().getSeconds())
+        );
+    }
+
+    /**
+     * 按照放行速率估算的等待时间(毫秒)
+     */
+    public long estimateWaitMillis(long position){
+        return position * 1000 / Math.max(1, seckillProperties.getWaitingRoom().getReleaseRate());
+    }
+}
@@ -0,0 +1,206 @@
+package com.jxdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.RandomUtil;
+import com.jxdp.properties.IdWorkerProperties;
+import com.jxdp.properties.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法id生成器，开启方式：hmdp.id-worker.strategy=snowflake
+ * id = 1(标识位，和RedisIdWorker生成的id区分开) | 40位毫秒时间戳 | 10位workerId | 12位序列号
+ * 1. id在本地生成，不需要访问redis，redis短暂不可用(不超过租约的有效时间)时也能继续生成
+ * 2. workerId在启动时从redis中租用(id:worker:{workerId})，定时续期，保证同一时间每个workerId只有一个实例在使用；
+ *    距离最后一次续期成功超过leaseTtl时，租约可能已经过期并被其他实例租用，停止生成id直到续期或者重新租用成功
+ * 3. 时间戳、workerId、序列号一起保存在一个AtomicLong中，通过CAS无锁生成
+ * 4. 时钟回拨：运行期间使用System.nanoTime()推算时间，不受系统时间调整的影响；
+ *    续期时记录workerId最近使用的时间戳(id:worker:last:{workerId})，重启后时间戳不会小于上一次使用的时间戳，
+ *    当前时间落后时继续使用上一次的时间戳往后分配，等系统时间追上来
+ * 注意：和RedisIdWorker一样使用2022-01-01作为开始时间，40位毫秒时间戳可以使用到2056年，
+ *      RedisIdWorker的id在2056年之前最高的标识位都是0，切换生成方式后两种id不会重复
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id-worker", name = "strategy", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdWorker {
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    IdWorkerProperties idWorkerProperties;
+    @Resource
+    SeckillProperties seckillProperties;
+
+    /**
+     * 开始时间戳(毫秒)
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIMESTAMP_SHIFT = WORKER_BITS + SEQUENCE_BITS;
+    private static final long MAX_WORKERS = 1L << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long WORKER_MASK = (MAX_WORKERS - 1) << SEQUENCE_BITS;
+    private static final long FLAG = 1L << 62;
+
+    private static final DefaultRedisScript<List<Object>> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        @SuppressWarnings("unchecked")
+        Class<List<Object>> listType = (Class<List<Object>>) (Class<?>) List.class;
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(listType);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 最近一次生成的id(不含标识位)：时间戳 | workerId | 序列号
+     */
+    private final AtomicLong state = new AtomicLong();
+    /**
+     * 租约的值：实例id + 随机串，同一个实例重启后也不相同
+     */
+    private String leaseValue;
+    /**
+     * 租约的过期时间(System.nanoTime())，按发起续期的时间计算，不会晚于redis中key的实际过期时间
+     */
+    private volatile long leaseExpireNanos;
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    @PostConstruct
+    public void init(){
+        leaseValue = seckillProperties.getInstanceId() + ":" + UUID.randomUUID().toString(true);
+        lease();
+    }
+
+    @Override
+    public long nextId(String keyPrefix){
+        if (System.nanoTime() - leaseExpireNanos >= 0){
+            throw new IllegalStateException("workerId " + getWorkerId() + " 的租约已经过期，暂停生成id");
+        }
+        long now = currentMillis();
+        while (true){
+            long prev = state.get();
+            long prevTimestamp = prev >>> TIMESTAMP_SHIFT;
+            long next;
+            if (now > prevTimestamp){
+                next = now << TIMESTAMP_SHIFT | (prev & WORKER_MASK);
+            } else if ((prev & SEQUENCE_MASK) < SEQUENCE_MASK){
+                // 同一毫秒内(或者时钟落后时)序列号加1
+                next = prev + 1;
+            } else {
+                // 序列号用完了，借用下一毫秒，不需要等待
+                next = (prevTimestamp + 1) << TIMESTAMP_SHIFT | (prev & WORKER_MASK);
+            }
+            if (state.compareAndSet(prev, next)){
+                return FLAG | next;
+            }
+        }
+    }
+
+    /**
+     * 当前使用的workerId
+     */
+    public long getWorkerId(){
+        return (state.get() & WORKER_MASK) >>> SEQUENCE_BITS;
+    }
+
+    /**
+     * 定时续期workerId的租约
+     * 租约被其他实例占用时重新租用一个workerId；redis不可用时在租约的有效时间内继续使用当前的workerId
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id-worker.snowflake.heartbeat-interval:10000}")
+    public void heartbeat(){
+        try {
+            long start = System.nanoTime();
+            long current = state.get();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.emptyList(),
+                    String.valueOf(getWorkerId()), leaseValue, leaseTtlMillis(), String.valueOf(current >>> TIMESTAMP_SHIFT));
+            if (renewed == null || renewed == 0){
+                log.warn("workerId {} 已经被其他实例租用，重新租用", getWorkerId());
+                leaseExpireNanos = System.nanoTime();
+                lease();
+                return;
+            }
+            leaseExpireNanos = start + idWorkerProperties.getSnowflake().getLeaseTtl().toNanos();
+        } catch (Exception e) {
+            log.error("workerId {} 续期失败", getWorkerId(), e);
+        }
+    }
+
+    @PreDestroy
+    public void release(){
+        try {
+            long current = state.get();
+            long workerId = getWorkerId();
+            stringRedisTemplate.execute(RENEW_SCRIPT, Collections.emptyList(),
+                    String.valueOf(workerId), leaseValue, leaseTtlMillis(), String.valueOf(current >>> TIMESTAMP_SHIFT));
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId), leaseValue);
+        } catch (Exception e) {
+            log.error("释放workerId失败", e);
+        }
+    }
+
+    /**
+     * 租用一个空闲的workerId，并从该workerId上一次使用的时间戳之后开始生成
+     */
+    private void lease(){
+        long start = System.nanoTime();
+        List<?> result = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                leaseValue, leaseTtlMillis(),
+                String.valueOf(MAX_WORKERS), String.valueOf(RandomUtil.randomLong(MAX_WORKERS)));
+        long workerId = ((Number) result.get(0)).longValue();
+        if (workerId < 0){
+            throw new IllegalStateException("没有空闲的workerId，最多支持" + MAX_WORKERS + "个实例");
+        }
+        long lastTimestamp = ((Number) result.get(1)).longValue();
+        if (lastTimestamp > currentMillis()){
+            log.warn("系统时间落后于workerId {} 上一次使用的时间 {} ms，从上一次的时间之后开始生成",
+                    workerId, lastTimestamp - currentMillis());
+        }
+        while (true){
+            long prev = state.get();
+            // 序列号置为最大值，下一个id从lastTimestamp的下一毫秒开始
+            long timestamp = Math.max(prev >>> TIMESTAMP_SHIFT, lastTimestamp);
+            long next = timestamp << TIMESTAMP_SHIFT | workerId << SEQUENCE_BITS | SEQUENCE_MASK;
+            if (state.compareAndSet(prev, next)){
+                break;
+            }
+        }
+        leaseExpireNanos = start + idWorkerProperties.getSnowflake().getLeaseTtl().toNanos();
+        log.info("租用workerId: {}", workerId);
+    }
+
+    /**
+     * 相对于BEGIN_TIMESTAMP的毫秒数，启动后通过System.nanoTime()推算，系统时间回拨不会影响
+     */
+    private long currentMillis(){
+        return baseMillis + (System.nanoTime() - baseNanos) / 1_000_000 - BEGIN_TIMESTAMP;
+    }
+
+    private String leaseTtlMillis(){
+        return String.valueOf(idWorkerProperties.getSnowflake().getLeaseTtl().toMillis());
+    }
+}
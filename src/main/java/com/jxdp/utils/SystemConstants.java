@@ -5,4 +5,12 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // 订单状态，1：未支付；4：已取消
+    public static final int ORDER_STATUS_UNPAID = 1;
+    public static final int ORDER_STATUS_CANCELLED = 4;
+    // 秒杀一人一单的记录方式，1：set；2：bitmap(以用户id为偏移量)；3：分片bitmap(每个分片BUYER_BITMAP_SHARD_SIZE位)
+    public static final int BUYER_DEDUPE_SET = 1;
+    public static final int BUYER_DEDUPE_BITMAP = 2;
+    public static final int BUYER_DEDUPE_SHARDED_BITMAP = 3;
+    public static final long BUYER_BITMAP_SHARD_SIZE = 1 << 20;
 }
@@ -0,0 +1,5 @@
+-- 秒杀券的每人限购数量和一人一单的记录方式
+-- 原来只保存在redis的seckill:meta:{voucherId}中，redis被清空后预热会把它们重置成默认值，改为同时保存在数据库中
+ALTER TABLE `tb_seckill_voucher`
+    ADD COLUMN `user_limit` int(8) NOT NULL DEFAULT 1 COMMENT '每人限购数量' AFTER `stock`,
+    ADD COLUMN `buyer_dedupe` tinyint(1) NULL DEFAULT NULL COMMENT '一人一单的记录方式，1：set；2：bitmap；3：分片bitmap，为空时使用默认配置' AFTER `user_limit`;
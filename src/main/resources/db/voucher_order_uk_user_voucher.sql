@@ -0,0 +1,6 @@
+-- 幂等下单模式(hmdp.seckill.consumer.persist-mode=idempotent)需要的唯一索引
+-- 依靠它忽略同一个用户对同一张优惠卷的重复订单，每人只能有一个订单：
+-- 1. 只在切换到idempotent模式时执行，locked模式下每人限购多张(user_limit > 1)的秒杀券会因为这个索引下单失败
+-- 2. 执行前先确认没有每人限购多张的秒杀券，并清理已经存在的重复订单，否则索引创建失败
+ALTER TABLE `tb_voucher_order`
+    ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
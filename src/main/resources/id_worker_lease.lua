@@ -0,0 +1,19 @@
+-- 租用一个空闲的workerId
+-- 参数列表
+   -- 1.1 租约的值(实例标识)
+local value = ARGV[1]
+    -- 1.2 租约的有效时间(毫秒)
+local ttl = ARGV[2]
+    -- 1.3 workerId的数量
+local maxWorkers = tonumber(ARGV[3])
+    -- 1.4 从哪个workerId开始尝试，避免所有实例都从0开始争抢
+local start = tonumber(ARGV[4])
+for i = 0, maxWorkers - 1 do
+    local workerId = (start + i) % maxWorkers
+    if (redis.call('set', 'id:worker:' .. workerId, value, 'NX', 'PX', ttl)) then
+        -- 返回workerId以及该workerId上一次使用的时间戳，用于发现时钟回拨
+        return {workerId, tonumber(redis.call('get', 'id:worker:last:' .. workerId) or '0')}
+    end
+end
+-- 没有空闲的workerId
+return {-1, 0}
@@ -0,0 +1,26 @@
+-- 续期workerId的租约，同时记录该workerId最近使用的时间戳
+-- 参数列表
+   -- 1.1 workerId
+local workerId = ARGV[1]
+    -- 1.2 租约的值(实例标识)
+local value = ARGV[2]
+    -- 1.3 租约的有效时间(毫秒)
+local ttl = ARGV[3]
+    -- 1.4 最近使用的时间戳
+local last = tonumber(ARGV[4])
+local key = 'id:worker:' .. workerId
+local owner = redis.call('get', key)
+if (owner == value) then
+    redis.call('pexpire', key, ttl)
+elseif (not owner) then
+    -- 租约已经过期(例如redis不可用的时间超过了有效时间)，还没有被其他实例租用，重新租用
+    redis.call('set', key, value, 'PX', ttl)
+else
+    -- 已经被其他实例租用
+    return 0
+end
+local lastKey = 'id:worker:last:' .. workerId
+if (last > tonumber(redis.call('get', lastKey) or '0')) then
+    redis.call('set', lastKey, last)
+end
+return 1
@@ -0,0 +1,33 @@
+-- 滑动窗口限流(计数器近似)：每个key按窗口序号拆成 key:{序号} 的计数器，
+-- 窗口内的请求数 = 上一个窗口的计数 * 上一个窗口还在滑动窗口内的比例 + 当前窗口的计数，
+-- 每个key只有两个计数器，不会像zset那样记录窗口内的每一次请求
+-- 一次检查多个key(用户维度、资源维度)，全部通过才计数，避免被拒绝的请求占用其他维度的额度
+-- 参数列表
+    -- 1.1 窗口大小(毫秒)
+local window = tonumber(ARGV[1])
+    -- 1.2 之后依次是 key、窗口内允许的请求数
+-- 使用redis服务器的时间，避免各个实例的时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local index = math.floor(now / window)
+-- 上一个窗口还在滑动窗口内的比例
+local weight = (window - now % window) / window
+-- 检查每个key
+for i = 2, #ARGV, 2 do
+    local key = ARGV[i]
+    local limit = tonumber(ARGV[i + 1])
+    local current = tonumber(redis.call('get', key .. ':' .. index) or '0')
+    local previous = tonumber(redis.call('get', key .. ':' .. (index - 1)) or '0')
+    if (previous * weight + current >= limit) then
+        -- 被限流
+        return 0
+    end
+end
+-- 全部通过，当前窗口计数加一，计数器保留两个窗口
+for i = 2, #ARGV, 2 do
+    local counter = ARGV[i] .. ':' .. index
+    redis.call('incr', counter)
+    redis.call('pexpire', counter, window * 2)
+end
+return 1
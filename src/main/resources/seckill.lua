@@ -1,3 +1,4 @@
+-- 注意：所有key都由参数在脚本中拼接，没有通过KEYS声明，只能在单机(或主从)redis上执行，不支持redis集群
 -- 参数列表
    -- 1.1 优惠卷id
 local voucherId = ARGV[1]
@@ -5,29 +6,121 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
     -- 1.3 订单id
 local orderId = ARGV[3]
+    -- 1.4 订单消息队列(分区后的stream)
+local streamKey = ARGV[4] or 'stream.orders'
+    -- 1.5 是否已经从本地租约中扣减了库存(库存租约模式下，这里不再判断和扣减库存)
+local leased = ARGV[5] == '1'
+    -- 1.6 订单状态的过期时间(秒)
+local statusTtl = ARGV[6]
+    -- 1.7 实例id，库存租约模式下用掉一个租用的库存时从该实例的租约中减去
+local instanceId = ARGV[7]
 -- 数据key
     -- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒杀券元数据key(hash)：begin 开始时间、end 结束时间(毫秒时间戳)、status 状态、limit 每人限购数量、
+--     dedupe 一人一单的记录方式(1 set，2 bitmap，3 分片bitmap)
+local metaKey = 'seckill:meta:' .. voucherId
 -- 脚本业务
+-- 判断秒杀券是否在有效期内，元数据不存在时(旧的秒杀券)不做判断
+-- 使用redis服务器的时间，所有实例使用同一个时钟；读取时间后还有写操作，需要开启命令复制模式(redis 5以后默认开启)
+redis.replicate_commands()
+local limit = 1
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'status', 'limit', 'dedupe')
+if (meta[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (tonumber(meta[3]) ~= 1) then
+        -- 秒杀券已经下架，返回5
+        return 5
+    end
+    if (now < tonumber(meta[1])) then
+        -- 秒杀还未开始，返回3
+        return 3
+    end
+    if (now > tonumber(meta[2])) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+    limit = tonumber(meta[4] or '1')
+end
 -- 判断库存是否充足
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+if (not leased) then
+    local stock = tonumber(redis.call('get', stockKey))
+    if (stock == nil) then
+        -- 库存还没有写入redis(秒杀还没有预热)，返回6
+        return 6
+    end
+    if (stock <= 0) then
+        -- 3.2.库存不足，返回1
+        return 1
+    end
 end
 -- 判断用户是否下单
 -- 使用set类型(保证了唯一性)，每次下单就将下单用户id存到set中，
 -- 只有判断set中是否有该用户id，就能判断该用户是否有重复下单
-if redis.call('sismember', orderKey, userId) == 1 then
+-- 每人限购多张时，使用hash记录每个用户已经购买的数量
+-- 购买人数很多时可以使用bitmap，以用户id作为偏移量，每个用户只占1位：
+--   2 bitmap：seckill:order:bits:{voucherId}，适合连续的用户id
+--   3 分片bitmap：seckill:order:bits:{voucherId}:{userId / 2^20}，每个分片128KB，只有出现过的分片才会分配内存，适合稀疏的用户id，
+--     出现过的分片号记录在seckill:order:bits:{voucherId}:shards中，用于统计购买人数
+local countKey = 'seckill:order:count:' .. voucherId
+local dedupe = tonumber(meta[5] or '1')
+local bitsKey = 'seckill:order:bits:' .. voucherId
+local bitKey = nil
+local bitOffset = tonumber(userId)
+local bitShard = nil
+if (dedupe == 2) then
+    bitKey = bitsKey
+elseif (dedupe == 3) then
+    bitShard = math.floor(bitOffset / 1048576)
+    bitKey = bitsKey .. ':' .. bitShard
+    bitOffset = bitOffset % 1048576
+end
+if (limit > 1) then
+    if (tonumber(redis.call('hget', countKey, userId) or '0') >= limit) then
+        -- 超过限购数量
+        return 2
+    end
+elseif (bitKey) then
+    if (redis.call('getbit', bitKey, bitOffset) == 1) then
+        -- 重复下单
+        return 2
+    end
+elseif redis.call('sismember', orderKey, userId) == 1 then
     -- 重复下单
     return 2
 end
 -- 可以下单，则扣库存，将该用户id放入下单列表set中
-redis.call("incrby", stockKey, -1)
+if (not leased) then
+    redis.call("incrby", stockKey, -1)
+elseif (instanceId) then
+    -- 租用的库存已经卖出，不再算作租约中的库存，保证 redis库存 + 租约中的库存 + 已购买的人数 = 初始库存
+    redis.call('hincrby', 'seckill:lease:' .. voucherId, instanceId, -1)
+end
 -- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
+local fields = {'userId', userId, 'voucherId', voucherId, 'id', orderId}
+if (limit > 1) then
+    redis.call('hincrby', countKey, userId, 1)
+    -- 限购数量一起发给消费者，落库时按限购数量判断是否重复下单
+    table.insert(fields, 'userLimit')
+    table.insert(fields, limit)
+elseif (bitKey) then
+    redis.call('setbit', bitKey, bitOffset, 1)
+    if (bitShard) then
+        redis.call('sadd', bitsKey .. ':shards', bitShard)
+    end
+else
+    redis.call('sadd', orderKey, userId)
+end
 -- 3.6 使用redis中的基于stream的消息队列存储下单信息，所以在这里判断有购买资格以后，直接往消息队列中发送下单信息
 -- 为了跟订单实体类匹配，我们直接给orderID设置与实体类属性相同
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+redis.call('xadd', streamKey, '*', unpack(fields))
+-- 3.7 记录订单状态：排队中，消费者落库后会改为CREATED或FAILED，同时记录下单用户，查询状态时校验订单归属
+if (statusTtl) then
+    local statusKey = 'seckill:order:status:' .. orderId
+    redis.call('hset', statusKey, 'status', 'QUEUED', 'userId', userId)
+    redis.call('expire', statusKey, statusTtl)
+end
 return 0
@@ -0,0 +1,19 @@
+-- 批量判断购买资格：一次调用处理同一张优惠卷的多个用户
+-- 脚本加载时在前面拼接 local function admit(ARGV) <seckill.lua> end，每个用户按seckill.lua的逻辑依次判断，
+-- 整个脚本是原子的，结果和逐个调用seckill.lua相同
+-- 参数列表
+   -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 是否已经从本地租约中扣减了库存
+local leased = ARGV[2]
+    -- 1.3 订单状态的过期时间(秒)
+local statusTtl = ARGV[3]
+    -- 1.4 实例id
+local instanceId = ARGV[4]
+    -- 1.5 之后每个用户3个参数：用户id、订单id、订单消息队列(分区后的stream)
+-- 返回每个用户的结果，顺序和参数相同
+local results = {}
+for i = 5, #ARGV, 3 do
+    results[#results + 1] = admit({voucherId, ARGV[i], ARGV[i + 1], ARGV[i + 2], leased, statusTtl, instanceId})
+end
+return results
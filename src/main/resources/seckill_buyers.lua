@@ -0,0 +1,20 @@
+-- 统计秒杀券的购买人数(每人多单时是购买数量)，兼容各种一人一单的记录方式
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+local bitsKey = 'seckill:order:bits:' .. voucherId
+-- set
+local buyers = redis.call('scard', 'seckill:order:' .. voucherId)
+-- 每人多单
+local counts = redis.call('hvals', 'seckill:order:count:' .. voucherId)
+for i = 1, #counts do
+    buyers = buyers + tonumber(counts[i])
+end
+-- bitmap
+buyers = buyers + redis.call('bitcount', bitsKey)
+-- 分片bitmap
+local shards = redis.call('smembers', bitsKey .. ':shards')
+for i = 1, #shards do
+    buyers = buyers + redis.call('bitcount', bitsKey .. ':' .. shards[i])
+end
+return buyers
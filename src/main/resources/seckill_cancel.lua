@@ -0,0 +1,33 @@
+-- 取消订单后归还redis中的库存，并清除用户的购买记录，让用户可以重新抢购
+-- 幂等下单时被唯一索引忽略的重复订单也通过这个脚本归还库存(不清除购买记录)，丢弃的死信订单同样归还库存并清除购买记录
+-- 参数列表
+    -- 1.1 是否清除购买记录，1清除，0不清除(幂等下单模式下数据库唯一索引不允许同一个用户再次下单)
+local removeBuyer = ARGV[1]
+    -- 1.2 之后依次是 优惠卷id、用户id
+for i = 2, #ARGV, 2 do
+    local voucherId = ARGV[i]
+    local userId = ARGV[i + 1]
+    -- 归还库存
+    redis.call('incrby', 'seckill:stock:' .. voucherId, 1)
+    if (removeBuyer == '1') then
+        -- 每人多单时购买数量减一，每人一单时从set(或bitmap)中移除
+        -- 和seckill.lua使用同一种记录方式：限购多张时是hash，否则按dedupe选择set或bitmap
+        local countKey = 'seckill:order:count:' .. voucherId
+        local meta = redis.call('hmget', 'seckill:meta:' .. voucherId, 'limit', 'dedupe')
+        local limit = tonumber(meta[1] or '1')
+        local dedupe = tonumber(meta[2] or '1')
+        if (limit > 1) then
+            if (redis.call('hincrby', countKey, userId, -1) <= 0) then
+                redis.call('hdel', countKey, userId)
+            end
+        elseif (dedupe == 2) then
+            redis.call('setbit', 'seckill:order:bits:' .. voucherId, tonumber(userId), 0)
+        elseif (dedupe == 3) then
+            local uid = tonumber(userId)
+            redis.call('setbit', 'seckill:order:bits:' .. voucherId .. ':' .. math.floor(uid / 1048576), uid % 1048576, 0)
+        else
+            redis.call('srem', 'seckill:order:' .. voucherId, userId)
+        end
+    end
+end
+return 0
@@ -0,0 +1,20 @@
+-- 从延迟队列中认领到期的订单
+-- 认领时不删除，而是把分数改成 当前时间 + retryDelay，处理完成后再删除，
+-- 处理过程中实例宕机的话，这些订单在retryDelay之后会被重新认领
+-- 参数列表
+    -- 1.1 最多认领的数量
+local count = tonumber(ARGV[1])
+    -- 1.2 重新认领的间隔(毫秒)
+local retryDelay = tonumber(ARGV[2])
+-- 数据key
+local delayKey = 'seckill:order:delay'
+-- 使用redis服务器的时间，避免各个实例的时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+-- 到期的订单
+local orderIds = redis.call('zrangebyscore', delayKey, 0, now, 'LIMIT', 0, count)
+for i = 1, #orderIds do
+    redis.call('zadd', delayKey, now + retryDelay, orderIds[i])
+end
+return orderIds
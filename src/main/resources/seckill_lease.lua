@@ -0,0 +1,19 @@
+-- 库存租约：从redis的库存中一次性划走一批库存给某个实例，实例在本地扣减
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 希望租用的库存数量
+local want = tonumber(ARGV[2])
+    -- 1.3 实例id
+local instanceId = ARGV[3]
+-- 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 每个实例持有的租约，用于对账和实例宕机后的排查
+local leaseKey = 'seckill:lease:' .. voucherId
+-- 库存不足时租用剩余的全部库存
+local leased = math.min(want, math.max(0, tonumber(redis.call('get', stockKey) or '0')))
+if (leased > 0) then
+    redis.call('incrby', stockKey, -leased)
+    redis.call('hincrby', leaseKey, instanceId, leased)
+end
+return leased
@@ -0,0 +1,14 @@
+-- 归还库存租约：把实例本地没有用完的库存还回redis
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 归还的库存数量
+local count = tonumber(ARGV[2])
+    -- 1.3 实例id
+local instanceId = ARGV[3]
+-- 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+redis.call('incrby', stockKey, count)
+redis.call('hincrby', leaseKey, instanceId, -count)
+return count
@@ -0,0 +1,48 @@
+-- 秒杀排队(虚拟等候室)：为用户发放排队号，按固定速率放行
+-- 放行数量由时间计算得出：released = (now - 开始放行的时间) * rate / 1000，不需要定时任务推进队列
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 用户id
+local userId = ARGV[2]
+    -- 1.3 每秒放行的人数
+local rate = tonumber(ARGV[3])
+    -- 1.4 排队号的过期时间(秒)
+local ttl = tonumber(ARGV[4])
+-- 数据key
+    -- 用户的排队号，同一个用户重复排队拿到的还是原来的号
+local ticketKey = 'seckill:queue:' .. voucherId
+    -- 已发放的排队号
+local seqKey = 'seckill:queue:seq:' .. voucherId
+    -- 没有秒杀元数据时，以第一个排队号的发放时间作为开始放行的时间
+local startKey = 'seckill:queue:start:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+-- 使用redis服务器的时间，避免各个实例的时钟不一致
+redis.replicate_commands()
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+-- 获取排队号
+local ticket = tonumber(redis.call('hget', ticketKey, userId))
+if (ticket == nil) then
+    ticket = redis.call('incr', seqKey)
+    redis.call('hset', ticketKey, userId, ticket)
+    redis.call('expire', ticketKey, ttl)
+    redis.call('expire', seqKey, ttl)
+end
+-- 开始放行的时间：秒杀开始时间
+local begin = tonumber(redis.call('hget', metaKey, 'begin'))
+if (begin == nil) then
+    redis.call('set', startKey, now, 'NX', 'EX', ttl)
+    begin = tonumber(redis.call('get', startKey))
+end
+-- 已经放行的人数
+local released = 0
+if (now > begin) then
+    released = math.floor((now - begin) * rate / 1000)
+end
+if (ticket <= released) then
+    -- 轮到该用户了
+    return 0
+end
+-- 前面还有多少人
+return ticket - released
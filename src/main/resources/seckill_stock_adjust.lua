@@ -0,0 +1,14 @@
+-- 调整redis中的秒杀库存(对账修复使用)
+-- 减少库存时最多扣减到0，不会把库存扣成负数
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 调整的数量，正数增加，负数减少
+local delta = tonumber(ARGV[2])
+-- 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+if (delta < 0) then
+    delta = -math.min(-delta, math.max(0, tonumber(redis.call('get', stockKey) or '0')))
+end
+redis.call('incrby', stockKey, delta)
+return delta
@@ -0,0 +1,27 @@
+-- 秒杀预热：写入秒杀券元数据，redis中没有库存时从数据库库存初始化
+-- 参数列表
+    -- 1.1 优惠卷id
+local voucherId = ARGV[1]
+    -- 1.2 数据库中的库存
+local stock = tonumber(ARGV[2])
+    -- 1.3 开始时间、结束时间(毫秒时间戳)、状态、每人限购数量
+local beginTime = ARGV[3]
+local endTime = ARGV[4]
+local status = ARGV[5]
+local limit = ARGV[6]
+    -- 1.4 一人一单的记录方式(1 set，2 bitmap，3 分片bitmap)
+local dedupe = ARGV[7]
+-- 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+-- 时间和状态以数据库为准，限购数量和一人一单的记录方式也来自数据库，但redis中已经存在时不覆盖
+-- (已经有购买记录时改变记录方式会导致重复下单)
+redis.call('hset', metaKey, 'begin', beginTime, 'end', endTime, 'status', status)
+redis.call('hsetnx', metaKey, 'limit', limit)
+redis.call('hsetnx', metaKey, 'dedupe', dedupe)
+-- 库存已经存在，不再初始化
+if (redis.call('exists', stockKey) == 1) then
+    return 0
+end
+redis.call('set', stockKey, stock)
+return 1